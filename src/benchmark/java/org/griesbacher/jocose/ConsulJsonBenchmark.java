@@ -0,0 +1,131 @@
+package org.griesbacher.jocose;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ConsulJsonBenchmark compares the former String.format and regex handling of the consul JSON
+ * with JsonWriter and JsonReader. The former code is kept here as baseline. It is no unit test and only compiled
+ * with the benchmark profile: mvn -Pbenchmark test-compile exec:java [-Dbenchmark.iterations=...]
+ */
+public class ConsulJsonBenchmark {
+    private static final Pattern REGEX_ID_PATTERN = Pattern.compile("\"(.*?)\"\\s*:.*\\{");
+    private static final String ID = "8f67e672-1564-439e-9fd2-ecedd81c65ce";
+    private static final List<String> TAGS = new ArrayList<String>(Arrays.asList("foo", "bar", "job_1506428524976_0013", "user_hadoop"));
+    private static final Config.Check CHECK = new Config.Check(true, "10s", "1m");
+    private static final String SERVICE = "{\"ID\":\"" + ID + "\",\"Service\":\"Test Client\",\"Tags\":[\"foo\",\"bar\"],"
+            + "\"Meta\":{},\"Port\":9000,\"Address\":\"host.example.com\",\"Weights\":{\"Passing\":1,\"Warning\":1},"
+            + "\"EnableTagOverride\":false,\"ContentHash\":\"8d34d8d1b2b1d0f1\"}";
+
+    private static volatile Object sink;
+
+    private ConsulJsonBenchmark() {
+    }
+
+    private static String formatRegistration() {
+        final String consulTemplate = "{\n" +
+                "  \"ID\": \"%s\",\n" +
+                "  \"Name\": \"%s\",\n" +
+                "  \"Tags\": [ %s ],\n" +
+                "  \"Address\": \"%s\",\n" +
+                "  \"Port\": %d%s\n" +
+                "}";
+        final StringBuilder tagBuilder = new StringBuilder();
+        for (String tag : TAGS) {
+            tagBuilder.append("\"").append(tag).append("\"").append(",");
+        }
+        if (tagBuilder.length() > 0) {
+            tagBuilder.delete(tagBuilder.length() - 1, tagBuilder.length());
+        }
+        return String.format(consulTemplate, ID, "Test Client", tagBuilder, "host.example.com", 9000,
+                formatCheck(String.format("http://%s:%d/%s", "host.example.com", 9000, ID)));
+    }
+
+    /**
+     * The former Check.toJSON.
+     */
+    private static String formatCheck(final String address) {
+        return String.format(
+                ",\n" +
+                        "  \"Check\": {\n" +
+                        "    \"DeregisterCriticalServiceAfter\": \"%s\",\n" +
+                        "    \"HTTP\": \"%s\",\n" +
+                        "    \"Interval\": \"%s\"\n" +
+                        "  }\n", CHECK.deregisterPeriod, address, CHECK.checkInterval);
+    }
+
+    private static String writeRegistration() {
+        final JsonWriter writer = new JsonWriter()
+                .beginObject()
+                .name("ID").value(ID)
+                .name("Name").value("Test Client")
+                .name("Tags").beginArray();
+        for (String tag : TAGS) {
+            writer.value(tag);
+        }
+        writer.endArray()
+                .name("Address").value("host.example.com")
+                .name("Port").value(9000);
+        CHECK.writeJSON(writer, String.format("http://%s:%d/%s", "host.example.com", 9000, ID));
+        return writer.endObject().toString();
+    }
+
+    private static boolean regexLookup() {
+        final Matcher matcher = REGEX_ID_PATTERN.matcher(SERVICE.replaceAll("},", "},\n"));
+        while (matcher.find()) {
+            if (matcher.group(1).equals(ID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean readerLookup() throws Exception {
+        final JsonReader reader = new JsonReader(SERVICE);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextNameEquals("ID")) {
+                return reader.nextStringEquals(ID);
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    private static void report(String name, long start, int iterations) {
+        System.out.printf("%-22s %8.1f ns/op%n", name, (System.nanoTime() - start) / (double) iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + (round + 1));
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = formatRegistration();
+            }
+            report("String.format", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = writeRegistration();
+            }
+            report("JsonWriter", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = regexLookup();
+            }
+            report("regex lookup", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = readerLookup();
+            }
+            report("JsonReader lookup", start, iterations);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * BackgroundCollector refreshes the snapshot of a ScrapeCache in a fixed interval.
+ * Scrapes will only serve the last snapshot, so their latency does not depend on the amount of MBeans.
+ */
+class BackgroundCollector implements Runnable {
+    private static final Gauge BACKGROUND_COLLECTION = Gauge.build().name(PROMETHEUS_PREFIX + "background_collection_seconds")
+            .help("Duration in seconds of the last background collection.").register();
+
+    private final ScrapeCache cache;
+    private final long interval;
+
+    /**
+     * Generates a new BackgroundCollector.
+     *
+     * @param cache    the cache to refresh, it should never expire on its own
+     * @param interval in milliseconds between two collections
+     */
+    BackgroundCollector(ScrapeCache cache, long interval) {
+        this.cache = cache;
+        this.interval = interval;
+    }
+
+    /**
+     * Schedules the collections, the first one starts immediately.
+     *
+     * @return the handle to stop the collections
+     */
+    Scheduler.Task start() {
+        // the collection is local, so there is no need to spread it
+        return Scheduler.schedule(this, 0, interval, 0);
+    }
+
+    public void run() {
+        final long start = System.nanoTime();
+        try {
+            cache.refresh();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine("Background collection failed: " + e.getMessage());
+        }
+        BACKGROUND_COLLECTION.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+    }
+}
@@ -0,0 +1,427 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerNotification;
+import javax.management.NotCompliantMBeanException;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.loading.ClassLoaderRepository;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * CachingMBeanServer wraps an MBeanServer and caches the MBeanInfo of the MBeans and the results of queries without
+ * a QueryExp, so a scrape only reads attribute values. The registration and unregistration notifications of the
+ * MBeanServerDelegate invalidate the cache. An MBeanInfo which is not declared immutable, like the one of a
+ * DynamicMBean which adds attributes, is cached for the time to live only.
+ * Within a collection, marked by beginBulkReads(), the first read of an attribute reads all readable attributes of
+ * the MBean with one getAttributes call, the following reads of the MBean are served from this batch. Attributes
+ * missing in the batch, because they failed, are read one by one.
+ * All other calls are passed to the wrapped MBeanServer.
+ */
+class CachingMBeanServer implements MBeanServer, NotificationListener {
+    private static final Gauge CACHE_HITS = Gauge.build().name(PROMETHEUS_PREFIX + "mbean_metadata_cache_hits")
+            .help("Amount of MBeanInfo and query requests served by the metadata cache.").register();
+    private static final Gauge CACHE_MISSES = Gauge.build().name(PROMETHEUS_PREFIX + "mbean_metadata_cache_misses")
+            .help("Amount of MBeanInfo and query requests passed to the MBeanServer.").register();
+    private static final Gauge CACHE_SIZE = Gauge.build().name(PROMETHEUS_PREFIX + "mbean_metadata_cache_size")
+            .help("Amount of MBeanInfos and query results in the metadata cache.").register();
+    private static final Gauge CACHE_INVALIDATIONS = Gauge.build().name(PROMETHEUS_PREFIX + "mbean_metadata_cache_invalidations")
+            .help("Amount of MBean registrations and unregistrations which invalidated the metadata cache.").register();
+    private static final Gauge BULK_READS = Gauge.build().name(PROMETHEUS_PREFIX + "mbean_bulk_reads")
+            .help("Amount of getAttributes calls which read all attributes of an MBean at once.").register();
+    private static final Gauge BULK_FALLBACKS = Gauge.build().name(PROMETHEUS_PREFIX + "mbean_bulk_fallbacks")
+            .help("Amount of attributes which were missing in a bulk read and have been read alone.").register();
+    private static final long IMMUTABLE = Long.MAX_VALUE;
+    private static final ThreadLocal<Batch> BATCH = new ThreadLocal<Batch>();
+
+    private final Map<ObjectName, InfoEntry> infos = new ConcurrentHashMap<ObjectName, InfoEntry>();
+    private final Map<ObjectName, Set<ObjectInstance>> instances = new ConcurrentHashMap<ObjectName, Set<ObjectInstance>>();
+    private final Map<ObjectName, Set<ObjectName>> names = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+    // changed by every notification, a result fetched meanwhile must not be cached
+    private final AtomicLong generation = new AtomicLong();
+    private final long infoTTL;
+    private final boolean bulkReads;
+    private volatile MBeanServer server;
+
+    /**
+     * @param infoTTL   milliseconds an MBeanInfo, which is not declared immutable, is cached
+     * @param bulkReads read the attributes of an MBean at once within a collection
+     */
+    CachingMBeanServer(long infoTTL, boolean bulkReads) {
+        this.infoTTL = infoTTL;
+        this.bulkReads = bulkReads;
+    }
+
+    /**
+     * Marks the current thread as collecting, the calls may be nested.
+     * The values of a bulk read are at most as old as the collection, so other threads are not affected.
+     */
+    static void beginBulkReads() {
+        Batch batch = BATCH.get();
+        if (batch == null) {
+            batch = new Batch();
+            BATCH.set(batch);
+        }
+        batch.depth++;
+    }
+
+    static void endBulkReads() {
+        final Batch batch = BATCH.get();
+        if (batch != null && --batch.depth <= 0) {
+            BATCH.remove();
+        }
+    }
+
+    /**
+     * Sets the wrapped MBeanServer, which is created after its outer MBeanServer.
+     */
+    void setServer(MBeanServer server) {
+        this.server = server;
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        // first the generation, so a result fetched before this point is not cached after it
+        generation.incrementAndGet();
+        CACHE_INVALIDATIONS.inc();
+        final ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+        if (infos.remove(name) != null) {
+            CACHE_SIZE.dec();
+        }
+        clear(instances);
+        clear(names);
+    }
+
+    private static void clear(Map<ObjectName, ?> queries) {
+        for (ObjectName pattern : queries.keySet()) {
+            if (queries.remove(pattern) != null) {
+                CACHE_SIZE.dec();
+            }
+        }
+    }
+
+    private <V> void store(Map<ObjectName, V> cache, ObjectName key, V value, long fetchedGeneration) {
+        if (cache.put(key, value) == null) {
+            CACHE_SIZE.inc();
+        }
+        if (generation.get() != fetchedGeneration && cache.remove(key) != null) {
+            CACHE_SIZE.dec();
+        }
+    }
+
+    public MBeanInfo getMBeanInfo(ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        final InfoEntry cached = infos.get(name);
+        if (cached != null && (cached.expires == IMMUTABLE || cached.expires > System.currentTimeMillis())) {
+            CACHE_HITS.inc();
+            return cached.info;
+        }
+        CACHE_MISSES.inc();
+        final long fetchedGeneration = generation.get();
+        final MBeanInfo info = server.getMBeanInfo(name);
+        final boolean immutable = info.getDescriptor() != null
+                && "true".equals(String.valueOf(info.getDescriptor().getFieldValue("immutableInfo")));
+        store(infos, name, new InfoEntry(info, immutable ? IMMUTABLE : System.currentTimeMillis() + infoTTL),
+                fetchedGeneration);
+        return info;
+    }
+
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        if (query != null) {
+            return server.queryMBeans(name, query);
+        }
+        final ObjectName pattern = name == null ? ObjectName.WILDCARD : name;
+        final Set<ObjectInstance> cached = instances.get(pattern);
+        if (cached != null) {
+            CACHE_HITS.inc();
+            return new HashSet<ObjectInstance>(cached);
+        }
+        CACHE_MISSES.inc();
+        final long fetchedGeneration = generation.get();
+        final Set<ObjectInstance> result = server.queryMBeans(pattern, null);
+        store(instances, pattern, new HashSet<ObjectInstance>(result), fetchedGeneration);
+        return result;
+    }
+
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        if (query != null) {
+            return server.queryNames(name, query);
+        }
+        final ObjectName pattern = name == null ? ObjectName.WILDCARD : name;
+        final Set<ObjectName> cached = names.get(pattern);
+        if (cached != null) {
+            CACHE_HITS.inc();
+            return new HashSet<ObjectName>(cached);
+        }
+        CACHE_MISSES.inc();
+        final long fetchedGeneration = generation.get();
+        final Set<ObjectName> result = server.queryNames(pattern, null);
+        store(names, pattern, new HashSet<ObjectName>(result), fetchedGeneration);
+        return result;
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException {
+        return server.createMBean(className, name);
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException, InstanceNotFoundException {
+        return server.createMBean(className, name, loaderName);
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException {
+        return server.createMBean(className, name, params, signature);
+    }
+
+    public ObjectInstance createMBean(
+            String className, ObjectName name, ObjectName loaderName, Object[] params, String[] signature
+    ) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException, InstanceNotFoundException {
+        return server.createMBean(className, name, loaderName, params, signature);
+    }
+
+    public ObjectInstance registerMBean(Object object, ObjectName name)
+            throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
+        return server.registerMBean(object, name);
+    }
+
+    public void unregisterMBean(ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException {
+        server.unregisterMBean(name);
+    }
+
+    public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+        return server.getObjectInstance(name);
+    }
+
+    public boolean isRegistered(ObjectName name) {
+        return server.isRegistered(name);
+    }
+
+    public Integer getMBeanCount() {
+        return server.getMBeanCount();
+    }
+
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        final Batch batch = bulkReads ? BATCH.get() : null;
+        if (batch == null || name == null) {
+            return server.getAttribute(name, attribute);
+        }
+        if (!name.equals(batch.name)) {
+            load(batch, name);
+        }
+        // every value is served once, a second read of the attribute gets a new value
+        if (batch.values.containsKey(attribute)) {
+            return batch.values.remove(attribute);
+        }
+        if (batch.requested.remove(attribute)) {
+            BULK_FALLBACKS.inc();
+        }
+        return server.getAttribute(name, attribute);
+    }
+
+    /**
+     * Reads all readable attributes of the MBean into the batch. If that fails, the batch stays empty and the
+     * attributes are read one by one, which reports the failure.
+     */
+    private void load(Batch batch, ObjectName name) {
+        batch.name = name;
+        batch.values.clear();
+        batch.requested.clear();
+        try {
+            for (MBeanAttributeInfo info : getMBeanInfo(name).getAttributes()) {
+                if (info.isReadable()) {
+                    batch.requested.add(info.getName());
+                }
+            }
+            if (batch.requested.isEmpty()) {
+                return;
+            }
+            BULK_READS.inc();
+            final AttributeList attributes = server.getAttributes(
+                    name, batch.requested.toArray(new String[batch.requested.size()])
+            );
+            for (Attribute attribute : attributes.asList()) {
+                batch.values.put(attribute.getName(), attribute.getValue());
+            }
+        } catch (JMException e) {
+            batch.values.clear();
+        } catch (RuntimeException e) {
+            batch.values.clear();
+        }
+    }
+
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return server.getAttributes(name, attributes);
+    }
+
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+            MBeanException, ReflectionException {
+        server.setAttribute(name, attribute);
+    }
+
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return server.setAttributes(name, attributes);
+    }
+
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        return server.invoke(name, operationName, params, signature);
+    }
+
+    public String getDefaultDomain() {
+        return server.getDefaultDomain();
+    }
+
+    public String[] getDomains() {
+        return server.getDomains();
+    }
+
+    public void addNotificationListener(
+            ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback
+    ) throws InstanceNotFoundException {
+        server.addNotificationListener(name, listener, filter, handback);
+    }
+
+    public void addNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        server.addNotificationListener(name, listener, filter, handback);
+    }
+
+    public void removeNotificationListener(ObjectName name, ObjectName listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        server.removeNotificationListener(name, listener);
+    }
+
+    public void removeNotificationListener(
+            ObjectName name, ObjectName listener, NotificationFilter filter, Object handback
+    ) throws InstanceNotFoundException, ListenerNotFoundException {
+        server.removeNotificationListener(name, listener, filter, handback);
+    }
+
+    public void removeNotificationListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        server.removeNotificationListener(name, listener);
+    }
+
+    public void removeNotificationListener(
+            ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback
+    ) throws InstanceNotFoundException, ListenerNotFoundException {
+        server.removeNotificationListener(name, listener, filter, handback);
+    }
+
+    public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException {
+        return server.isInstanceOf(name, className);
+    }
+
+    public Object instantiate(String className) throws ReflectionException, MBeanException {
+        return server.instantiate(className);
+    }
+
+    public Object instantiate(String className, ObjectName loaderName)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        return server.instantiate(className, loaderName);
+    }
+
+    public Object instantiate(String className, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException {
+        return server.instantiate(className, params, signature);
+    }
+
+    public Object instantiate(String className, ObjectName loaderName, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        return server.instantiate(className, loaderName, params, signature);
+    }
+
+    @SuppressWarnings("deprecation")
+    public ObjectInputStream deserialize(ObjectName name, byte[] data)
+            throws InstanceNotFoundException, OperationsException {
+        return server.deserialize(name, data);
+    }
+
+    @SuppressWarnings("deprecation")
+    public ObjectInputStream deserialize(String className, byte[] data)
+            throws OperationsException, ReflectionException {
+        return server.deserialize(className, data);
+    }
+
+    @SuppressWarnings("deprecation")
+    public ObjectInputStream deserialize(String className, ObjectName loaderName, byte[] data)
+            throws InstanceNotFoundException, OperationsException, ReflectionException {
+        return server.deserialize(className, loaderName, data);
+    }
+
+    public ClassLoader getClassLoaderFor(ObjectName mbeanName) throws InstanceNotFoundException {
+        return server.getClassLoaderFor(mbeanName);
+    }
+
+    public ClassLoader getClassLoader(ObjectName loaderName) throws InstanceNotFoundException {
+        return server.getClassLoader(loaderName);
+    }
+
+    public ClassLoaderRepository getClassLoaderRepository() {
+        return server.getClassLoaderRepository();
+    }
+
+    /**
+     * Batch holds the attributes of the MBean which is read by the collecting thread.
+     */
+    private static class Batch {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        final Set<String> requested = new HashSet<String>();
+        ObjectName name;
+        int depth;
+    }
+
+    /**
+     * InfoEntry is a cached MBeanInfo.
+     */
+    private static class InfoEntry {
+        final MBeanInfo info;
+        final long expires;
+
+        InfoEntry(MBeanInfo info, long expires) {
+            this.info = info;
+            this.expires = expires;
+        }
+    }
+}
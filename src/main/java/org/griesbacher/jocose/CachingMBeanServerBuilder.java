@@ -0,0 +1,47 @@
+package org.griesbacher.jocose;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerBuilder;
+import javax.management.MBeanServerDelegate;
+
+/**
+ * CachingMBeanServerBuilder creates MBeanServers with a metadata cache, see CachingMBeanServer.
+ * It is public, because the MBeanServerFactory instantiates the class named by the system property
+ * javax.management.builder.initial. The property has to be set before the platform MBeanServer is created.
+ */
+public class CachingMBeanServerBuilder extends MBeanServerBuilder {
+    static final String BUILDER_PROPERTY = "javax.management.builder.initial";
+    static final long DEFAULT_INFO_TTL = 5 * 60 * 1000;
+    private static volatile long infoTTL = DEFAULT_INFO_TTL;
+    private static volatile boolean bulkReads = true;
+
+    /**
+     * @param ttl milliseconds an MBeanInfo, which is not declared immutable, is cached by MBeanServers created later
+     */
+    static void setInfoTTL(long ttl) {
+        infoTTL = ttl;
+    }
+
+    /**
+     * @param enabled if MBeanServers created later read the attributes of an MBean at once within a collection
+     */
+    static void setBulkReads(boolean enabled) {
+        bulkReads = enabled;
+    }
+
+    @Override
+    public MBeanServer newMBeanServer(String defaultDomain, MBeanServer outer, MBeanServerDelegate delegate) {
+        final CachingMBeanServer cachingServer = new CachingMBeanServer(infoTTL, bulkReads);
+        // the MBeans have to see the outermost server, like in their preRegister
+        final MBeanServer server = super.newMBeanServer(defaultDomain, outer == null ? cachingServer : outer, delegate);
+        cachingServer.setServer(server);
+        try {
+            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, cachingServer, null, null);
+        } catch (InstanceNotFoundException e) {
+            // without notifications the cache would never be invalidated
+            return server;
+        }
+        return cachingServer;
+    }
+}
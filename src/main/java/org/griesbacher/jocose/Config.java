@@ -10,15 +10,26 @@ public class Config {
     String consulAddress;
     int startPort = -1;
     int endPort = -1;
+    // records the ports claimed by the agents of this host
+    String portLeaseFile = PortAllocator.DEFAULT_LEASE_FILE;
+    // memory-mapped registry of the agents of this host, null if disabled
+    String hostRegistry;
     String serviceName;
     String exporterAddress;
     List<String> tags;
+    // milliseconds a blocking query waits for a change of the registration, 0 polls every registrationInterval
+    long watchWait = 0;
+    // milliseconds between two checks of the registration
+    long registrationInterval = 30 * 1000;
+    // fraction of an interval, by which the periodic consul requests are randomly shifted
+    double jitter = 0.2;
 
     //is not stored in ymlConfig, will be set from agent
     String ownHost;
     int ownPort = -1;
 
     Check check;
+    Exporter exporter;
 
     Config() {
     }
@@ -38,13 +49,95 @@ public class Config {
                 '}';
     }
 
+    /**
+     * Exporter represents the exporter section, which configures how metrics are collected and served.
+     */
+    public static class Exporter {
+        // milliseconds a collected scrape result is reused, 0 only merges concurrent scrapes
+        long cacheTTL = 0;
+        // milliseconds between two background collections, 0 collects on scrape
+        long collectionInterval = 0;
+        // amount of MBean partitions collected in parallel, 0 collects all MBeans at once
+        int parallelism = 0;
+        // stream every scrape to the client instead of collecting it into a buffer first
+        boolean streaming = false;
+        // threads of the web server, 0 derives them from the cpu quota of the container
+        int threads = 0;
+        // requests waiting for a thread before scrapes are answered with 503, 0 does not limit them
+        int queueSize = 0;
+        // use a virtual thread per request, if the JVM supports it
+        boolean virtualThreads = false;
+        // the web server implementation: httpserver or nio
+        String server = "httpserver";
+        // apply changes of the config file without a restart, the jmx rules and the consul tags and check
+        boolean reload = false;
+        // milliseconds between two revalidations of a remote config
+        long reloadInterval = 60 * 1000;
+        // directory into which the metrics are written for the snapshot aggregation of the sidecar, null disables it
+        String snapshotDirectory = null;
+        // milliseconds between two snapshots
+        long snapshotInterval = 15 * 1000;
+        // url of a Pushgateway to push the metrics to, null disables pushing
+        String push = null;
+        // milliseconds between two pushes
+        long pushInterval = 15 * 1000;
+        // compress the pushed metrics with gzip
+        boolean pushGzip = false;
+        // maximum size of a push, metric families beyond are left out
+        int pushMaxBytes = MetricsPusher.DEFAULT_MAX_BYTES;
+        // milliseconds after the final push until its group is deleted, 0 keeps the group
+        long pushDeleteAfter = 0;
+        // cache the MBeanInfos and MBean queries of the platform MBeanServer between scrapes
+        boolean metadataCache = false;
+        // milliseconds an MBeanInfo, which is not declared immutable, is cached
+        long metadataCacheTTL = CachingMBeanServerBuilder.DEFAULT_INFO_TTL;
+        // read all attributes of an MBean with one call, needs the metadata cache
+        boolean bulkReads = true;
+
+        Exporter() {
+        }
+
+        @Override
+        public String toString() {
+            return "Exporter{" +
+                    "cacheTTL=" + cacheTTL +
+                    ", collectionInterval=" + collectionInterval +
+                    ", parallelism=" + parallelism +
+                    ", streaming=" + streaming +
+                    ", threads=" + threads +
+                    ", queueSize=" + queueSize +
+                    ", virtualThreads=" + virtualThreads +
+                    ", server='" + server + '\'' +
+                    ", reload=" + reload +
+                    ", reloadInterval=" + reloadInterval +
+                    ", snapshotDirectory='" + snapshotDirectory + '\'' +
+                    ", snapshotInterval=" + snapshotInterval +
+                    ", push='" + push + '\'' +
+                    ", pushInterval=" + pushInterval +
+                    ", pushGzip=" + pushGzip +
+                    ", pushMaxBytes=" + pushMaxBytes +
+                    ", pushDeleteAfter=" + pushDeleteAfter +
+                    ", metadataCache=" + metadataCache +
+                    ", metadataCacheTTL=" + metadataCacheTTL +
+                    ", bulkReads=" + bulkReads +
+                    '}';
+        }
+    }
+
     /**
      * Check represents the subclass of service, within the config.
      */
     public static class Check {
+        static final String HTTP = "http";
+        static final String TTL = "ttl";
+
         boolean enabled = false;
         String checkInterval;
         String deregisterPeriod;
+        // http lets consul request the exporter, ttl lets the exporter report to consul
+        String type = HTTP;
+        // milliseconds between two reports of a ttl check
+        long passInterval = 0;
 
         Check(final boolean enabled, final String checkInterval, final String deregisterPeriod) {
             this.enabled = enabled;
@@ -56,18 +149,38 @@ public class Config {
         }
 
         /**
-         * This generates an JSON string for the consul service object.
+         * This generates the JSON object of the check, like it is sent within the consul service object.
          * @param address The address of the exporter.
-         * @return Returns a JSON like string.
+         * @return Returns a JSON object with the member Check.
          */
         public String toJSON(final String address) {
-            return String.format(
-                    ",\n" +
-                            "  \"Check\": {\n" +
-                            "    \"DeregisterCriticalServiceAfter\": \"%s\",\n" +
-                            "    \"HTTP\": \"%s\",\n" +
-                            "    \"Interval\": \"%s\"\n" +
-                            "  }\n", this.deregisterPeriod, address, this.checkInterval);
+            final JsonWriter writer = new JsonWriter().beginObject();
+            writeJSON(writer, address);
+            return writer.endObject().toString();
+        }
+
+        /**
+         * Writes the check as member of the consul service object.
+         *
+         * @param writer  the writer of the service object
+         * @param address The address of the exporter.
+         */
+        void writeJSON(final JsonWriter writer, final String address) {
+            writer.name("Check").beginObject()
+                    .name("DeregisterCriticalServiceAfter").value(deregisterPeriod);
+            if (isTTL()) {
+                // the exporter is alive while it registers itself
+                writer.name("TTL").value(checkInterval)
+                        .name("Status").value("passing");
+            } else {
+                writer.name("HTTP").value(address)
+                        .name("Interval").value(checkInterval);
+            }
+            writer.endObject();
+        }
+
+        boolean isTTL() {
+            return enabled && TTL.equals(type);
         }
 
         @Override
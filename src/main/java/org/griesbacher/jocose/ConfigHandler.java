@@ -10,8 +10,6 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static org.griesbacher.jocose.JavaAgent.errorExit;
-
 
 class ConfigHandler {
     private static final String ADDRESS = "address";
@@ -20,30 +18,158 @@ class ConfigHandler {
     private static final String CHECK = "check";
     private static final String ENABLED = "enabled";
     private static final String CONSUL = "consul";
+    private static final String EXPORTER = "exporter";
+    // consul does not wait longer than 10 minutes
+    private static final long MAX_WATCH_WAIT = 10 * 60 * 1000;
+    private static final Pattern DURATION_PATTERN = Pattern.compile("^(\\d+)\\s*(ms|s|m|h)?$");
+    private static final Pattern ATTEMPT_PATTERN = Pattern.compile("^attempt_(.*?)_\\w_.*");
+    // set while a reloaded config is parsed, a broken config must not end the running JVM
+    private static final ThreadLocal<Boolean> RELOADING = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
 
     private ConfigHandler() {
     }
 
+    /**
+     * Exits on an invalid config at the startup, while reloading the config is only rejected.
+     */
+    private static void invalid(String s, Object... objects) {
+        if (RELOADING.get()) {
+            throw new IllegalArgumentException(String.format(s.trim(), objects));
+        }
+        JavaAgent.errorExit(s, objects);
+    }
+
+    @SuppressWarnings("unchecked")
     private static Map<String, Object> loadYAML(Reader reader) {
         final Object yamlObj;
         try {
             yamlObj = new Yaml().load(reader);
             if (!(yamlObj instanceof Map)) {
-                errorExit("Configfile is not in a valid map structure");
-            }
-
-            // load jmx ymlConfig
-            Map<String, Object> configMap = (Map<String, Object>) yamlObj;
-            if (configMap != null && configMap.containsKey(CONSUL) && configMap.get(CONSUL) instanceof Map) {
-                // load consul ymlConfig
-                return (Map<String, Object>) configMap.get(CONSUL);
+                invalid("Configfile is not in a valid map structure");
             }
+            return (Map<String, Object>) yamlObj;
         } catch (Exception e) {
-            errorExit("Configfile does not contain valid YAML");
+            invalid("Configfile does not contain valid YAML");
+        }
+        return new HashMap<String, Object>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> loadSection(Map<String, Object> configMap, String section) {
+        if (configMap != null && configMap.containsKey(section) && configMap.get(section) instanceof Map) {
+            return (Map<String, Object>) configMap.get(section);
         }
         return new HashMap<String, Object>();
     }
 
+    /**
+     * Parses a duration like "500ms", "10s", "1m" or "1h". A plain number is treated as seconds.
+     *
+     * @param duration the duration string
+     * @return the duration in milliseconds
+     */
+    static long parseDuration(String duration) {
+        final Matcher matcher = DURATION_PATTERN.matcher(duration.trim());
+        if (!matcher.matches()) {
+            invalid("The given duration is invalid: '%s'", duration);
+            return -1;
+        }
+        final long value = Long.parseLong(matcher.group(1));
+        final String unit = matcher.group(2);
+        if ("ms".equals(unit)) {
+            return value;
+        } else if ("m".equals(unit)) {
+            return value * 60 * 1000;
+        } else if ("h".equals(unit)) {
+            return value * 60 * 60 * 1000;
+        }
+        return value * 1000;
+    }
+
+    private static Config.Exporter loadExporter(Map<String, Object> configMap) {
+        final Config.Exporter exporter = new Config.Exporter();
+        final Map<String, Object> config = loadSection(configMap, EXPORTER);
+
+        if (config.containsKey("cacheTTL")) {
+            exporter.cacheTTL = parseDuration(String.valueOf(config.get("cacheTTL")));
+        }
+        if (config.containsKey("collectionInterval")) {
+            exporter.collectionInterval = parseDuration(String.valueOf(config.get("collectionInterval")));
+        }
+        if (config.containsKey("parallelism")) {
+            exporter.parallelism = (Integer) config.get("parallelism");
+        }
+        if (config.containsKey("streaming")) {
+            exporter.streaming = (Boolean) config.get("streaming");
+        }
+        if (config.containsKey("threads")) {
+            exporter.threads = (Integer) config.get("threads");
+        }
+        if (config.containsKey("queueSize")) {
+            exporter.queueSize = (Integer) config.get("queueSize");
+        }
+        if (config.containsKey("virtualThreads")) {
+            exporter.virtualThreads = (Boolean) config.get("virtualThreads");
+        }
+        if (config.containsKey("server")) {
+            exporter.server = (String) config.get("server");
+        }
+        if (config.containsKey("reload")) {
+            exporter.reload = (Boolean) config.get("reload");
+        }
+        if (config.containsKey("reloadInterval")) {
+            exporter.reloadInterval = parseDuration(String.valueOf(config.get("reloadInterval")));
+            if (exporter.reloadInterval <= 0) {
+                invalid("The reloadInterval has to be positive");
+            }
+        }
+        if (config.containsKey("snapshotDirectory")) {
+            exporter.snapshotDirectory = (String) config.get("snapshotDirectory");
+        }
+        if (config.containsKey("snapshotInterval")) {
+            exporter.snapshotInterval = parseDuration(String.valueOf(config.get("snapshotInterval")));
+            if (exporter.snapshotInterval <= 0) {
+                invalid("The snapshotInterval has to be positive");
+            }
+        }
+        if (config.containsKey("push")) {
+            exporter.push = (String) config.get("push");
+        }
+        if (config.containsKey("pushInterval")) {
+            exporter.pushInterval = parseDuration(String.valueOf(config.get("pushInterval")));
+            if (exporter.pushInterval <= 0) {
+                invalid("The pushInterval has to be positive");
+            }
+        }
+        if (config.containsKey("pushGzip")) {
+            exporter.pushGzip = (Boolean) config.get("pushGzip");
+        }
+        if (config.containsKey("pushMaxBytes")) {
+            exporter.pushMaxBytes = (Integer) config.get("pushMaxBytes");
+            if (exporter.pushMaxBytes <= 0) {
+                invalid("The pushMaxBytes has to be positive");
+            }
+        }
+        if (config.containsKey("pushDeleteAfter")) {
+            exporter.pushDeleteAfter = parseDuration(String.valueOf(config.get("pushDeleteAfter")));
+        }
+        if (config.containsKey("metadataCache")) {
+            exporter.metadataCache = (Boolean) config.get("metadataCache");
+        }
+        if (config.containsKey("metadataCacheTTL")) {
+            exporter.metadataCacheTTL = parseDuration(String.valueOf(config.get("metadataCacheTTL")));
+        }
+        if (config.containsKey("bulkReads")) {
+            exporter.bulkReads = (Boolean) config.get("bulkReads");
+        }
+        return exporter;
+    }
+
     private static Config.Check loadCheck(Map<String, Object> consulConfig) {
         final Config.Check check = new Config.Check();
         if (consulConfig.containsKey(CHECK) && consulConfig.get(CHECK) instanceof Map) {
@@ -58,13 +184,27 @@ class ConfigHandler {
             if (config.containsKey("deregisterPeriod")) {
                 check.deregisterPeriod = (String) config.get("deregisterPeriod");
             }
+            if (config.containsKey("type")) {
+                check.type = (String) config.get("type");
+            }
+            if (!Config.Check.HTTP.equals(check.type) && !Config.Check.TTL.equals(check.type)) {
+                invalid("The check type has to be %s or %s. Given: %s", Config.Check.HTTP, Config.Check.TTL, check.type);
+            }
+            if (check.isTTL()) {
+                if (check.checkInterval == null) {
+                    invalid("The checkInterval field is mandatory for ttl checks");
+                }
+                // three reports per ttl, so a single lost request does not turn the check critical
+                check.passInterval = Math.max(1, parseDuration(check.checkInterval) / 3);
+            }
         }
         return check;
     }
 
     static Config parseConfig(Reader reader) {
         final Config config = new Config();
-        final Map<String, Object> consulConfig = loadYAML(reader);
+        final Map<String, Object> configMap = loadYAML(reader);
+        final Map<String, Object> consulConfig = loadSection(configMap, CONSUL);
 
         if (consulConfig.containsKey(ENABLED)) {
             config.enabled = (Boolean) consulConfig.get(ENABLED);
@@ -72,7 +212,7 @@ class ConfigHandler {
         if (consulConfig.containsKey(ADDRESS)) {
             config.consulAddress = ((String) consulConfig.get(ADDRESS));
         } else if (config.enabled) {
-            errorExit("The consul address field is mandatory if consul is enabled");
+            invalid("The consul address field is mandatory if consul is enabled");
         }
 
         if (consulConfig.containsKey("serviceName")) {
@@ -89,13 +229,26 @@ class ConfigHandler {
                 config.startPort = Integer.parseInt(portRange[0]);
                 config.endPort = Integer.parseInt(portRange[1]);
             } else {
-                errorExit(
+                invalid(
                         "The given consulPort range is invalid. Expected consulPort-consulPort. Given: %s",
                         consulConfig.get(PORT_RANGE)
                 );
             }
         } else if (config.enabled) {
-            errorExit("The %s field is mandatory if consul is enabled", PORT_RANGE);
+            invalid("The %s field is mandatory if consul is enabled", PORT_RANGE);
+        }
+
+        if (consulConfig.containsKey("portLeaseFile")) {
+            config.portLeaseFile = (String) consulConfig.get("portLeaseFile");
+        }
+
+        if (consulConfig.containsKey("hostRegistry")) {
+            final Object hostRegistry = consulConfig.get("hostRegistry");
+            if (hostRegistry == null || "".equals(String.valueOf(hostRegistry).trim())) {
+                config.hostRegistry = HostRegistry.DEFAULT_FILE;
+            } else {
+                config.hostRegistry = String.valueOf(hostRegistry);
+            }
         }
 
         if (consulConfig.containsKey(TAGS) && consulConfig.get(TAGS) instanceof List) {
@@ -106,11 +259,50 @@ class ConfigHandler {
         }
         config.tags = addAdditionalTags(config.tags);
 
+        if (consulConfig.containsKey("watchWait")) {
+            config.watchWait = parseDuration(String.valueOf(consulConfig.get("watchWait")));
+            if (config.watchWait < 1000 || config.watchWait > MAX_WATCH_WAIT) {
+                invalid("The watchWait has to be between 1s and 10m. Given: %s", consulConfig.get("watchWait"));
+            }
+        }
+
+        if (consulConfig.containsKey("registrationInterval")) {
+            config.registrationInterval = parseDuration(String.valueOf(consulConfig.get("registrationInterval")));
+            if (config.registrationInterval <= 0) {
+                invalid("The registrationInterval has to be positive");
+            }
+        }
+        if (consulConfig.containsKey("jitter")) {
+            config.jitter = ((Number) consulConfig.get("jitter")).doubleValue();
+            if (config.jitter < 0 || config.jitter >= 1) {
+                invalid("The jitter has to be at least 0 and less than 1. Given: %s", consulConfig.get("jitter"));
+            }
+        }
+
         config.check = loadCheck(consulConfig);
+        config.exporter = loadExporter(configMap);
 
         return config;
     }
 
+    /**
+     * Parses a reloaded config.
+     *
+     * @param reader the config
+     * @return the config
+     * @throws IllegalArgumentException if the config is invalid, instead of exiting
+     */
+    static Config reparseConfig(Reader reader) {
+        RELOADING.set(true);
+        try {
+            return parseConfig(reader);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Config contains a value of the wrong type: " + e.getMessage());
+        } finally {
+            RELOADING.set(false);
+        }
+    }
+
     private static List<String> addAdditionalTags(List<String> tags) {
         // Trying to find a hadoop job id and add it as tag
         String job = searchJob();
@@ -126,10 +318,9 @@ class ConfigHandler {
         return tags;
     }
 
-    private static String searchJob() {
-        Pattern p = Pattern.compile("^attempt_(.*?)_\\w_.*");
+    static String searchJob() {
         for (String arg : System.getProperty("sun.java.command").split(" ")) {
-            Matcher m = p.matcher(arg);
+            Matcher m = ATTEMPT_PATTERN.matcher(arg);
             if (m.matches()) {
                 return m.group(1);
             }
@@ -137,6 +328,18 @@ class ConfigHandler {
         return "";
     }
 
+    /**
+     * @return the hadoop task attempt id of this JVM, empty if none is found
+     */
+    static String searchAttempt() {
+        for (String arg : System.getProperty("sun.java.command").split(" ")) {
+            if (ATTEMPT_PATTERN.matcher(arg).matches()) {
+                return arg;
+            }
+        }
+        return "";
+    }
+
 
     private static List<String> replaceSpecialTags(List<String> tags) {
         final Pattern envPattern = Pattern.compile("(\\$ENV\\(\"(.*?)\"\\))");
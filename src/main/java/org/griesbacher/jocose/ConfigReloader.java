@@ -0,0 +1,186 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Gauge;
+
+import javax.management.MalformedObjectNameException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * ConfigReloader applies a changed config to the running agent. The new jmx collector is built on the thread which
+ * noticed the change, not on the scrape path, and then swapped in. Consul is only contacted if the tags or the check
+ * changed. An invalid config is rejected and the agent keeps the old one.
+ * Settings of the web server, the port and the consul connection need a restart.
+ */
+class ConfigReloader {
+    private static final Gauge CONFIG_RELOADS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "config_reloads")
+            .help("Amount of changed configs which have been applied.").register();
+    private static final Gauge CONFIG_RELOAD_FAILURES = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "config_reload_failures")
+            .help("Amount of changed configs which have been rejected.").register();
+    private static final Gauge CONFIG_RELOAD = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "config_reload_seconds")
+            .help("Time in seconds to apply the last changed config").register();
+    // editors write a file in several steps
+    private static final long SETTLE_TIME = 200;
+
+    private final ReloadableCollector collector;
+    private final Consul consul;
+    private final ConsulTTLCheck ttlCheck;
+    private String current;
+    private Config currentConfig;
+
+    /**
+     * @param collector     the registered collector of the agent
+     * @param consul        the consul registration, null if consul is disabled
+     * @param ttlCheck      the reports of the ttl check, null if the check is no ttl check
+     * @param configString  the config the agent has been started with
+     * @param config        the parsed config
+     */
+    ConfigReloader(
+            ReloadableCollector collector, Consul consul, ConsulTTLCheck ttlCheck, String configString, Config config
+    ) {
+        this.collector = collector;
+        this.consul = consul;
+        this.ttlCheck = ttlCheck;
+        this.current = configString;
+        this.currentConfig = config;
+    }
+
+    /**
+     * Applies the config, if it differs from the current one.
+     *
+     * @param configString the content of the config
+     * @return true if the config changed and has been applied
+     */
+    synchronized boolean apply(String configString) {
+        if (configString.equals(current)) {
+            return false;
+        }
+        final long start = System.nanoTime();
+        final Config config;
+        final Collector newCollector;
+        try {
+            config = ConfigHandler.reparseConfig(new StringReader(configString));
+            newCollector = JavaAgent.createCollector(configString, config.exporter.parallelism);
+        } catch (MalformedObjectNameException e) {
+            return reject(configString, e);
+        } catch (RuntimeException e) {
+            // the jmx collector reports invalid rules with runtime exceptions
+            return reject(configString, e);
+        }
+
+        collector.swap(newCollector);
+        if (consul != null) {
+            // an enabled ttl check and an http check are reported differently, this is decided at the start
+            if (config.check.isTTL() != currentConfig.check.isTTL()) {
+                JavaAgent.LOGGER.warning("A changed check type needs a restart, the check stays " + currentConfig.check.type);
+                config.check = currentConfig.check;
+            }
+            if (consul.update(config.tags, config.check)) {
+                JavaAgent.LOGGER.info("Registered again with the reloaded tags and check");
+            }
+            if (ttlCheck != null && config.check.isTTL()) {
+                // the reports have to follow the ttl which consul knows now
+                ttlCheck.reschedule(config.check.passInterval);
+            }
+        }
+        current = configString;
+        currentConfig = config;
+        CONFIG_RELOADS.inc();
+        CONFIG_RELOAD.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        JavaAgent.LOGGER.info("Reloaded the config");
+        return true;
+    }
+
+    private boolean reject(String configString, Exception e) {
+        // remember it, so the same broken config is not rejected over and over
+        current = configString;
+        CONFIG_RELOAD_FAILURES.inc();
+        JavaAgent.LOGGER.warning("Rejected the changed config: " + e.getMessage());
+        return false;
+    }
+
+    /**
+     * Watches the config file on its own thread, which applies every change.
+     *
+     * @param file the config file
+     * @return the watching thread
+     * @throws IOException if the directory of the file can not be watched
+     */
+    Thread watchFile(final File file) throws IOException {
+        final Path directory = file.getAbsoluteFile().getParentFile().toPath();
+        final Path name = file.toPath().getFileName();
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread watcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        final WatchKey key = watchService.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                        }
+                        key.reset();
+                        if (changed) {
+                            Thread.sleep(SETTLE_TIME);
+                            reloadFile(file);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ClosedWatchServiceException e) {
+                    JavaAgent.LOGGER.fine(e.getMessage());
+                } finally {
+                    try {
+                        watchService.close();
+                    } catch (IOException e) {
+                        JavaAgent.LOGGER.fine(e.getMessage());
+                    }
+                }
+            }
+        }, "jocose-config-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        return watcher;
+    }
+
+    private void reloadFile(File file) {
+        try {
+            apply(JavaAgent.readConfig(new FileReader(file)));
+        } catch (IOException e) {
+            // the file might be replaced right now, the next event follows
+            JavaAgent.LOGGER.fine("Config file not readable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Revalidates a remote config periodically on the shared scheduler.
+     *
+     * @param cache    the cache of the remote config
+     * @param url      the url of the config
+     * @param interval in milliseconds between two revalidations
+     * @param jitter   the fraction of the interval, by which each revalidation may randomly be shifted
+     * @return the handle to stop the revalidation
+     */
+    Scheduler.Task pollURL(final RemoteConfigCache cache, final String url, long interval, double jitter) {
+        return Scheduler.schedule(new Runnable() {
+            public void run() {
+                try {
+                    apply(cache.fetch(url));
+                } catch (IOException e) {
+                    JavaAgent.LOGGER.fine("Config could not be revalidated: " + e.getMessage());
+                }
+            }
+        }, Scheduler.jitter(interval, jitter), interval, jitter);
+    }
+}
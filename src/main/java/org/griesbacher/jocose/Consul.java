@@ -1,92 +1,61 @@
 package org.griesbacher.jocose;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.List;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Consul will be used to communicate with the consul server.
  * This is a poor mans API, the official API is not used to avoid class loading conflicts.
  */
 class Consul {
-    private static final int HTTP_TIMEOUT = 5000;
     private static final Logger LOGGER = Logger.getLogger(Consul.class.getName());
-    private static final String APPLICATION_JSON = "application/json";
     private final String id;
     private final String name;
-    private final List<String> tags;
     private final String host;
     private final int port;
+    private final ConsulHttpClient client;
+    private final ConsulCircuitBreaker breaker;
+    // the registration changes only on a reload, so it is serialized only once
+    private volatile String registration;
     private final String consulAddress;
-    private final Config.Check check;
-    private final Pattern regexIDPattern = Pattern.compile("\"(.*?)\"\\s*:.*\\{");
+    // blocking queries get their own connection, so they do not delay the other requests
+    private volatile ConsulHttpClient watchClient;
 
     public Consul(
             final String id, final String name, final List<String> tags, final String host,
             final int port, final String consulAddress, final Config.Check check
+    ) {
+        this(id, name, tags, host, port, consulAddress, check, new ConsulCircuitBreaker());
+    }
+
+    /**
+     * @param breaker the circuit breaker of the consul agent, shared with other users of the same agent
+     */
+    Consul(
+            final String id, final String name, final List<String> tags, final String host,
+            final int port, final String consulAddress, final Config.Check check, final ConsulCircuitBreaker breaker
     ) {
         this.id = id;
         this.name = name;
-        this.tags = tags;
         this.host = host;
         this.port = port;
         this.consulAddress = consulAddress;
-        this.check = check;
+        this.client = new ConsulHttpClient(consulAddress);
+        this.breaker = breaker;
+        this.registration = registrationJSON(tags, check);
     }
 
-    private static boolean putRequest(final URL url, final String data) {
-        try {
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("PUT");
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Content-Type", APPLICATION_JSON);
-            connection.setRequestProperty("Accept", APPLICATION_JSON);
-            connection.setConnectTimeout(HTTP_TIMEOUT);
-            OutputStreamWriter osw = new OutputStreamWriter(connection.getOutputStream());
-            osw.write(data);
-            osw.flush();
-            osw.close();
-            return connection.getResponseCode() == 200;
-        } catch (IOException e) {
-            LOGGER.fine(e.getMessage());
-            return false;
-        }
+    private boolean putRequest(final String path, final String data) {
+        return putRequest(path, data, false);
     }
 
-    private static String getRequest(final URL url) {
+    private boolean putRequest(final String path, final String data, final boolean force) {
         try {
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Content-Type", APPLICATION_JSON);
-            connection.setRequestProperty("Accept", APPLICATION_JSON);
-            connection.setConnectTimeout(HTTP_TIMEOUT);
-            final BufferedReader bufferedReader;
-            if (200 <= connection.getResponseCode() && connection.getResponseCode() <= 299) {
-                bufferedReader = new BufferedReader(new InputStreamReader((connection.getInputStream())));
-            } else {
-                bufferedReader = new BufferedReader(new InputStreamReader((connection.getErrorStream())));
-            }
-            StringBuilder stringBuilder = new StringBuilder();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                if ("".equals(line)) {
-                    break;
-                }
-                stringBuilder.append(line).append("\n");
-            }
-            return stringBuilder.toString().replaceAll("},", "},\n");
+            return breaker.request(client, "PUT", path, data, ConsulHttpClient.REQUEST_TIMEOUT, force).status == 200;
         } catch (IOException e) {
             LOGGER.fine(e.getMessage());
-            return e.getMessage();
+            return false;
         }
     }
 
@@ -96,52 +65,79 @@ class Consul {
      * @return true if the registration went well, false else.
      */
     boolean registerService() {
-        final String consulTemplate = "{\n" +
-                "  \"ID\": \"%s\",\n" +
-                "  \"Name\": \"%s\",\n" +
-                "  \"Tags\": [ %s ],\n" +
-                "  \"Address\": \"%s\",\n" +
-                "  \"Port\": %d%s\n" +
-                "}";
-        final StringBuilder tagBuilder = new StringBuilder();
-        for (String tag : tags) {
-            tagBuilder.append("\"").append(tag).append("\"").append(",");
+        return putRequest("/v1/agent/service/register", registration);
+    }
+
+    /**
+     * Applies the tags and the check of a reloaded config. The service is only registered again,
+     * if its registration changed.
+     *
+     * @param newTags  the tags of the service
+     * @param newCheck the check of the service, of the same type as before
+     * @return true if the service has been registered again
+     */
+    synchronized boolean update(final List<String> newTags, final Config.Check newCheck) {
+        final String newRegistration = registrationJSON(newTags, newCheck);
+        if (newRegistration.equals(registration)) {
+            return false;
         }
-        if (tagBuilder.length() > 0) {
-            tagBuilder.delete(tagBuilder.length() - 1, tagBuilder.length());
+        registration = newRegistration;
+        return registerService();
+    }
+
+    private String registrationJSON(final List<String> tags, final Config.Check check) {
+        final JsonWriter writer = new JsonWriter()
+                .beginObject()
+                .name("ID").value(id)
+                .name("Name").value(name)
+                .name("Tags").beginArray();
+        for (String tag : tags) {
+            writer.value(tag);
         }
-        final String consulServiceJSON;
+        writer.endArray()
+                .name("Address").value(host)
+                .name("Port").value(port);
         if (check.enabled) {
-            consulServiceJSON = String.format(consulTemplate, id, name, tagBuilder, host, port, check.toJSON(
-                    String.format("http://%s:%d/%s", host, port, id))
-            );
-        } else {
-            consulServiceJSON = String.format(consulTemplate, id, name, tagBuilder, host, port, "");
+            check.writeJSON(writer, String.format("http://%s:%d/%s", host, port, id));
         }
-        final URL url;
-        try {
-            url = new URL(String.format("%s/v1/agent/service/register", consulAddress));
-            return putRequest(url, consulServiceJSON);
-        } catch (MalformedURLException e) {
-            LOGGER.fine(e.getMessage());
-            return false;
+        return writer.endObject().toString();
+    }
+
+    /**
+     * Tests if the body of a service lookup describes this service.
+     *
+     * @param body the JSON of the agent service endpoint
+     * @return true if the ID of the service matches
+     * @throws IOException if the body is no valid JSON
+     */
+    boolean isOwnService(final String body) throws IOException {
+        final JsonReader reader = new JsonReader(body);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextNameEquals("ID")) {
+                return reader.peek() == JsonReader.Token.STRING && reader.nextStringEquals(id);
+            }
+            reader.skipValue();
         }
+        return false;
     }
 
     /**
-     * Deregisters the service.
+     * Deregisters the service. It is tried even if the circuit breaker is open, because it is the last request.
      *
      * @return If the service could be deregistered.
      */
     boolean deregisterService() {
-        final URL url;
-        try {
-            url = new URL(String.format("%s/v1/agent/service/deregister/%s", consulAddress, id));
-            return putRequest(url, "");
-        } catch (MalformedURLException e) {
-            LOGGER.fine(e.getMessage());
-            return false;
-        }
+        return putRequest(String.format("/v1/agent/service/deregister/%s", id), "", true);
+    }
+
+    /**
+     * Reports the ttl check of the service as passing.
+     *
+     * @return true if consul accepted the report
+     */
+    boolean passCheck() {
+        return putRequest(String.format("/v1/agent/check/pass/service:%s", id), "");
     }
 
     /**
@@ -150,20 +146,53 @@ class Consul {
      * @return returns true if the service is registered false else.
      */
     boolean isServiceRegistered() {
-        final URL url;
         try {
-            url = new URL(String.format("%s/v1/agent/services", consulAddress));
-            final String consulJSON = getRequest(url);
-            Matcher matcher = regexIDPattern.matcher(consulJSON);
-            while (matcher.find()) {
-                if (matcher.group(1).equals(id)) {
-                    return true;
-                }
-            }
-        } catch (MalformedURLException e) {
+            final ConsulHttpClient.Response response = breaker.request(
+                    client, "GET", String.format("/v1/agent/service/%s", id), null, ConsulHttpClient.REQUEST_TIMEOUT, false
+            );
+            // consul answers 404 for unknown IDs, the body is only checked to not trust a misrouted response
+            return response.status == 200 && isOwnService(response.body);
+        } catch (IOException e) {
             LOGGER.fine(e.getMessage());
+            return false;
         }
-        return false;
+    }
+
+    /**
+     * Waits with a blocking query until the registration differs from the given hash or the wait time is over.
+     * The agent service endpoint uses content hashes instead of indexes for blocking queries.
+     *
+     * @param hash the hash of the last response, null to return immediately
+     * @param wait the time in milliseconds consul should wait for a change
+     * @return the hash of the current registration, null if the service is not registered
+     * @throws IOException if consul could not be asked or does not support blocking queries on this endpoint
+     */
+    String watchService(final String hash, final long wait) throws IOException {
+        if (watchClient == null) {
+            // consul adds up to wait/16 to spread the responses
+            watchClient = new ConsulHttpClient(consulAddress, (int) (wait + wait / 16 + ConsulHttpClient.READ_TIMEOUT));
+        }
+        final StringBuilder path = new StringBuilder(String.format("/v1/agent/service/%s", id));
+        if (hash != null) {
+            path.append("?hash=").append(hash).append("&wait=").append(wait / 1000).append('s');
+        }
+        final ConsulHttpClient.Response response = breaker.request(
+                watchClient, "GET", path.toString(), null, wait + wait / 16 + ConsulHttpClient.REQUEST_TIMEOUT, false
+        );
+        if (response.status == 404) {
+            return null;
+        }
+        if (response.status != 200) {
+            throw new IOException(String.format("Consul answered the watch with %d: %s", response.status, response.body));
+        }
+        if (!isOwnService(response.body)) {
+            return null;
+        }
+        final String contentHash = response.getHeader("X-Consul-ContentHash");
+        if (contentHash == null) {
+            throw new IOException("Consul does not support blocking queries for the agent service endpoint");
+        }
+        return contentHash;
     }
 
     /**
@@ -179,6 +208,10 @@ class Consul {
         @Override
         public void run() {
             consul.deregisterService();
+            consul.client.close();
+            if (consul.watchClient != null) {
+                consul.watchClient.close();
+            }
         }
     }
 
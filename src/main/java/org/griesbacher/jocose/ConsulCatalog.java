@@ -0,0 +1,160 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ConsulCatalog writes the services of the agents of a host into the consul catalog with batched transactions.
+ * The services belong to a node of their own, because the anti-entropy of the local consul agent removes catalog
+ * entries of its node which it does not know itself.
+ */
+class ConsulCatalog {
+    // consul rejects transactions with more operations
+    static final int MAX_OPERATIONS = 64;
+    private static final Gauge TRANSACTIONS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "sidecar_consul_transactions")
+            .help("Amount of transactions sent to consul.").register();
+    private static final Gauge TRANSACTION_OPERATIONS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "sidecar_consul_transaction_operations")
+            .help("Amount of operations sent to consul within transactions.").register();
+
+    private final ConsulHttpClient client;
+    private final String node;
+    private final String nodeAddress;
+
+    /**
+     * @param client      the client of the consul agent
+     * @param node        the name of the catalog node of the services
+     * @param nodeAddress the address of the node
+     */
+    ConsulCatalog(ConsulHttpClient client, String node, String nodeAddress) {
+        this.client = client;
+        this.node = node;
+        this.nodeAddress = nodeAddress;
+    }
+
+    /**
+     * Lists the IDs of the services of the node.
+     *
+     * @return the IDs, null if the node does not exist
+     * @throws IOException if consul could not be asked
+     */
+    Set<String> services() throws IOException {
+        final ConsulHttpClient.Response response = client.request("GET", "/v1/catalog/node/" + node, null);
+        if (response.status == 404) {
+            return null;
+        }
+        if (response.status != 200) {
+            throw new IOException(String.format("Consul answered %d for the node %s: %s", response.status, node, response.body));
+        }
+        final JsonReader reader = new JsonReader(response.body);
+        if (reader.peek() == JsonReader.Token.NULL) {
+            return null;
+        }
+        final Set<String> services = new HashSet<String>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextNameEquals("Services") && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    services.add(reader.nextName());
+                    reader.skipValue();
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Sends the operations in as few transactions as consul allows.
+     * Each transaction is atomic, but a failed one does not roll back the transactions sent before.
+     *
+     * @param operations the JSON of the operations
+     * @throws IOException if a transaction failed
+     */
+    void apply(List<String> operations) throws IOException {
+        for (int start = 0; start < operations.size(); start += MAX_OPERATIONS) {
+            final List<String> batch = operations.subList(start, Math.min(operations.size(), start + MAX_OPERATIONS));
+            final StringBuilder body = new StringBuilder(batch.size() * 256).append('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append(batch.get(i));
+            }
+            body.append(']');
+            TRANSACTIONS.inc();
+            TRANSACTION_OPERATIONS.inc(batch.size());
+            final ConsulHttpClient.Response response = client.request("PUT", "/v1/txn", body.toString());
+            if (response.status != 200) {
+                throw new IOException(String.format("Consul transaction failed with %d: %s", response.status, response.body));
+            }
+        }
+    }
+
+    String setNode() {
+        return new JsonWriter()
+                .beginObject().name("Node").beginObject()
+                .name("Verb").value("set")
+                .name("Node").beginObject()
+                .name("Node").value(node)
+                .name("Address").value(nodeAddress)
+                .endObject()
+                .endObject().endObject().toString();
+    }
+
+    String setService(SidecarRegistry.Agent agent) {
+        final JsonWriter writer = new JsonWriter()
+                .beginObject().name("Service").beginObject()
+                .name("Verb").value("set")
+                .name("Node").value(node)
+                .name("Service").beginObject()
+                .name("ID").value(agent.id)
+                .name("Service").value(agent.name)
+                .name("Tags").beginArray();
+        for (String tag : agent.tags) {
+            writer.value(tag);
+        }
+        return writer.endArray()
+                .name("Address").value(agent.address)
+                .name("Port").value(agent.port)
+                .endObject()
+                .endObject().endObject().toString();
+    }
+
+    /**
+     * The check is passing as long as the agent reports to the sidecar, the sidecar removes silent agents.
+     */
+    String setCheck(SidecarRegistry.Agent agent) {
+        return new JsonWriter()
+                .beginObject().name("Check").beginObject()
+                .name("Verb").value("set")
+                .name("Check").beginObject()
+                .name("Node").value(node)
+                .name("CheckID").value("service:" + agent.id)
+                .name("Name").value("Jocose sidecar")
+                .name("Status").value("passing")
+                .name("ServiceID").value(agent.id)
+                .endObject()
+                .endObject().endObject().toString();
+    }
+
+    /**
+     * Deleting the service deletes its check as well.
+     */
+    String deleteService(String id) {
+        return new JsonWriter()
+                .beginObject().name("Service").beginObject()
+                .name("Verb").value("delete")
+                .name("Node").value(node)
+                .name("Service").beginObject()
+                .name("ID").value(id)
+                .endObject()
+                .endObject().endObject().toString();
+    }
+}
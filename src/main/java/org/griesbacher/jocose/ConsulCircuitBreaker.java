@@ -0,0 +1,160 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * ConsulCircuitBreaker stops the requests to consul after repeated failures, so a sick consul is not piled on.
+ * After the failure threshold the breaker opens and rejects all requests for a backoff, which doubles with every
+ * failed retry and is drawn uniformly from zero to its limit (full jitter), so the agents of a fleet spread out.
+ * When the backoff is over, the breaker is half open and lets a single request through, its result closes the
+ * breaker again or opens it for the next backoff.
+ */
+class ConsulCircuitBreaker {
+    static final int CLOSED = 0;
+    static final int HALF_OPEN = 1;
+    static final int OPEN = 2;
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF = 1000;
+    static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+    private static final Gauge STATE = Gauge.build().name(PROMETHEUS_PREFIX + "consul_circuit_state")
+            .help("State of the consul circuit breaker: 0 closed, 1 half open, 2 open.").register();
+    private static final Gauge FAILURES = Gauge.build().name(PROMETHEUS_PREFIX + "consul_request_failures")
+            .help("Amount of failed consul requests.").register();
+    private static final Gauge REJECTED = Gauge.build().name(PROMETHEUS_PREFIX + "consul_requests_rejected")
+            .help("Amount of consul requests rejected by the open circuit breaker.").register();
+    private static final Gauge RETRIES = Gauge.build().name(PROMETHEUS_PREFIX + "consul_circuit_retries")
+            .help("Amount of retries since the circuit breaker opened the last time.").register();
+    private static final Gauge BACKOFF = Gauge.build().name(PROMETHEUS_PREFIX + "consul_circuit_backoff_seconds")
+            .help("Duration in seconds of the current backoff of the circuit breaker.").register();
+
+    private final int failureThreshold;
+    private final long baseBackoff;
+    private final long maxBackoff;
+    private final Random random = new Random();
+    private int state = CLOSED;
+    private int consecutiveFailures;
+    private int retries;
+    private long openUntil;
+    private boolean trialInFlight;
+
+    ConsulCircuitBreaker() {
+        this(FAILURE_THRESHOLD, BASE_BACKOFF, MAX_BACKOFF);
+    }
+
+    /**
+     * Creates a new closed breaker.
+     *
+     * @param failureThreshold consecutive failures which open the breaker
+     * @param baseBackoff      the limit of the first backoff in milliseconds
+     * @param maxBackoff       the highest limit of a backoff in milliseconds
+     */
+    ConsulCircuitBreaker(int failureThreshold, long baseBackoff, long maxBackoff) {
+        this.failureThreshold = failureThreshold;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        STATE.set(CLOSED);
+    }
+
+    /**
+     * Decides if a request may be sent. Every permitted request has to be followed by success or failure.
+     *
+     * @return true if the request may be sent
+     */
+    synchronized boolean allowRequest() {
+        if (state == OPEN && System.currentTimeMillis() >= openUntil) {
+            setState(HALF_OPEN);
+        }
+        if (state == CLOSED) {
+            return true;
+        }
+        if (state == HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            retries++;
+            RETRIES.set(retries);
+            return true;
+        }
+        REJECTED.inc();
+        return false;
+    }
+
+    synchronized void success() {
+        consecutiveFailures = 0;
+        retries = 0;
+        trialInFlight = false;
+        RETRIES.set(0);
+        BACKOFF.set(0);
+        setState(CLOSED);
+    }
+
+    synchronized void failure() {
+        FAILURES.inc();
+        consecutiveFailures++;
+        if (state == HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            trialInFlight = false;
+            final long backoff = backoff(retries);
+            openUntil = System.currentTimeMillis() + backoff;
+            BACKOFF.set(backoff / 1000.0);
+            setState(OPEN);
+        }
+    }
+
+    /**
+     * Sends a request, if the breaker permits it, and reports the result to the breaker.
+     * Server errors count as failures, other status codes show that consul is working.
+     *
+     * @param force send the request even if the breaker is open
+     * @throws IOException if the breaker is open or the request failed
+     */
+    ConsulHttpClient.Response request(
+            final ConsulHttpClient httpClient, final String method, final String path, final String body,
+            final long timeout, final boolean force
+    ) throws IOException {
+        if (!force && !allowRequest()) {
+            throw new IOException("Consul circuit breaker is open");
+        }
+        final ConsulHttpClient.Response response;
+        try {
+            response = httpClient.request(method, path, body, timeout);
+        } catch (IOException e) {
+            failure();
+            throw e;
+        } catch (RuntimeException e) {
+            // a half open breaker waits for the outcome of its trial request
+            failure();
+            throw e;
+        }
+        if (response.status >= 500) {
+            failure();
+        } else {
+            success();
+        }
+        return response;
+    }
+
+    synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * Draws the backoff uniformly between zero and the doubled limit of the previous one.
+     *
+     * @param retry the amount of failed retries so far
+     * @return the backoff in milliseconds
+     */
+    long backoff(int retry) {
+        final long limit = baseBackoff << Math.min(retry, 30);
+        final long cappedLimit = limit <= 0 ? maxBackoff : Math.min(maxBackoff, limit);
+        return (long) (random.nextDouble() * cappedLimit);
+    }
+
+    private void setState(int newState) {
+        state = newState;
+        STATE.set(newState);
+    }
+}
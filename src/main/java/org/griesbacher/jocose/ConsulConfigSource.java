@@ -0,0 +1,205 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * ConsulConfigSource reads the config from the consul KV store and watches the key with blocking queries,
+ * so every agent keeps one long poll open instead of polling a config server.
+ * The consul address is taken from CONSUL_HTTP_ADDR and the ACL token from CONSUL_HTTP_TOKEN, like the consul CLI
+ * does, because the config which could name them is not read yet. The requests pass a circuit breaker, which the
+ * agent shares with its service registration, if both use the same consul agent.
+ */
+class ConsulConfigSource {
+    static final String DEFAULT_ADDRESS = "http://127.0.0.1:8500";
+    static final long DEFAULT_WAIT = 5 * 60 * 1000;
+    private static final Gauge CONSUL_CONFIG_WATCH_REQUESTS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_config_watch_requests")
+            .help("Amount of blocking queries sent to watch the config in the consul KV store.").register();
+    private static final Gauge CONSUL_CONFIG_INDEX = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_config_index")
+            .help("Consul index of the current config.").register();
+
+    private final String address;
+    private final String key;
+    private final String token;
+    private final ConsulHttpClient client;
+    private final ConsulCircuitBreaker breaker = new ConsulCircuitBreaker();
+    // only used by the watching thread
+    private ConsulHttpClient watchClient;
+    private volatile long index;
+
+    /**
+     * @param address the address of the consul agent
+     * @param key     the KV path of the config, without leading slash
+     * @param token   the ACL token, may be null
+     */
+    ConsulConfigSource(String address, String key, String token) {
+        this.address = address;
+        this.key = key.replaceAll("^/+", "");
+        this.token = token;
+        this.client = new ConsulHttpClient(address);
+        this.client.setToken(token);
+    }
+
+    /**
+     * Creates a source for the key with the address and token of the environment.
+     *
+     * @param key the KV path of the config
+     * @return the source
+     */
+    static ConsulConfigSource fromEnvironment(String key) {
+        return new ConsulConfigSource(environmentAddress(), key, System.getenv("CONSUL_HTTP_TOKEN"));
+    }
+
+    /**
+     * @return the consul address of CONSUL_HTTP_ADDR, the local agent if not set
+     */
+    static String environmentAddress() {
+        final String address = System.getenv("CONSUL_HTTP_ADDR");
+        if (address == null || "".equals(address.trim())) {
+            return DEFAULT_ADDRESS;
+        }
+        if (!address.contains("://")) {
+            return ("true".equals(System.getenv("CONSUL_HTTP_SSL")) ? "https://" : "http://") + address.trim();
+        }
+        return address.trim();
+    }
+
+    /**
+     * Reads the current config.
+     *
+     * @return the content of the key
+     * @throws IOException if consul is not reachable or the key does not exist
+     */
+    String read() throws IOException {
+        final ConsulHttpClient.Response response = breaker.request(
+                client, "GET", path(), null, ConsulHttpClient.REQUEST_TIMEOUT, false
+        );
+        return handle(response, 0);
+    }
+
+    /**
+     * Waits with a blocking query until the key changed or the wait time is over.
+     *
+     * @param wait the time in milliseconds consul should wait for a change
+     * @return the content of the key, null if it did not change
+     * @throws IOException if consul is not reachable or the key does not exist
+     */
+    String await(long wait) throws IOException {
+        if (watchClient == null) {
+            // consul adds up to wait/16 to spread the responses
+            watchClient = new ConsulHttpClient(address, (int) (wait + wait / 16 + ConsulHttpClient.READ_TIMEOUT));
+            watchClient.setToken(token);
+        }
+        final long lastIndex = index;
+        CONSUL_CONFIG_WATCH_REQUESTS.inc();
+        final ConsulHttpClient.Response response = breaker.request(
+                watchClient, "GET", path() + "&index=" + lastIndex + "&wait=" + (wait / 1000) + "s", null,
+                wait + wait / 16 + ConsulHttpClient.REQUEST_TIMEOUT, false
+        );
+        final String content = handle(response, lastIndex);
+        return index == lastIndex ? null : content;
+    }
+
+    private String handle(ConsulHttpClient.Response response, long lastIndex) throws IOException {
+        if (response.status == 404) {
+            throw new IOException("Config key not found in consul: " + key);
+        }
+        if (!response.isSuccessful()) {
+            throw new IOException(String.format("Consul answered %d for the config key %s: %s", response.status, key, response.body));
+        }
+        long newIndex = 0;
+        try {
+            newIndex = Long.parseLong(response.getHeader("X-Consul-Index"));
+        } catch (NumberFormatException e) {
+            JavaAgent.LOGGER.fine("Consul sent no valid index: " + response.getHeader("X-Consul-Index"));
+        }
+        if (newIndex < lastIndex) {
+            // a lower index means consul has been reset, the watch has to start over
+            index = 0;
+        } else if (newIndex <= 0) {
+            // an index of 0 would let every blocking query return at once
+            index = 1;
+        } else {
+            index = newIndex;
+        }
+        CONSUL_CONFIG_INDEX.set(index);
+        return response.body;
+    }
+
+    private String path() {
+        return "/v1/kv/" + encode(key) + "?raw";
+    }
+
+    /**
+     * Percent-encodes every segment of the key, the slashes stay separators.
+     *
+     * @param key the KV path
+     * @return the path for the URL
+     */
+    static String encode(String key) {
+        final StringBuilder path = new StringBuilder(key.length() + 16);
+        final String[] segments = key.split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            try {
+                path.append(URLEncoder.encode(segments[i], "UTF-8").replace("+", "%20"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return the address of the consul agent
+     */
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the circuit breaker of the requests to the consul agent
+     */
+    ConsulCircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Watches the key on its own thread and applies every change.
+     *
+     * @param reloader the reloader of the agent
+     * @param wait     the time in milliseconds a blocking query waits for a change
+     * @param retry    the time in milliseconds to wait after a failure
+     * @param jitter   the fraction of the retry, by which it may randomly be shifted
+     * @return the watching thread
+     */
+    Thread watch(final ConfigReloader reloader, final long wait, final long retry, final double jitter) {
+        final Thread watcher = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        final String content = await(wait);
+                        if (content != null) {
+                            reloader.apply(content);
+                        }
+                    } catch (IOException e) {
+                        JavaAgent.LOGGER.fine("Config could not be watched: " + e.getMessage());
+                        try {
+                            Thread.sleep(Scheduler.jitter(retry, jitter));
+                        } catch (InterruptedException interrupted) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "jocose-config-consul-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        return watcher;
+    }
+}
@@ -0,0 +1,371 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ConsulHttpClient is a minimal HTTP/1.1 client for the consul agent, which keeps one connection open between requests.
+ * Every response body is read completely, so the connection can be reused, and every request has a deadline,
+ * so a hanging agent can not block the caller forever.
+ * The client is meant for the local consul agent, there is no support for proxies or redirects.
+ */
+class ConsulHttpClient {
+    static final int CONNECT_TIMEOUT = 5000;
+    static final int READ_TIMEOUT = 5000;
+    static final int REQUEST_TIMEOUT = 10000;
+    private static final Gauge CONNECTIONS_OPENED = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_connections_opened")
+            .help("Amount of connections which have been opened to the consul agent.").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private final String address;
+    private final int readTimeout;
+    private URL url;
+    private String token;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    /**
+     * Creates a new client, no connection is opened before the first request.
+     *
+     * @param address the base address of the consul agent, like http://127.0.0.1:8500
+     */
+    ConsulHttpClient(String address) {
+        this(address, READ_TIMEOUT);
+    }
+
+    ConsulHttpClient(String address, int readTimeout) {
+        this.address = address;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets the ACL token which is sent with every request.
+     *
+     * @param token the token, null to send none
+     */
+    synchronized void setToken(String token) {
+        this.token = token == null || "".equals(token.trim()) ? null : token.trim();
+    }
+
+    /**
+     * Sends a request with the default deadline.
+     *
+     * @see #request(String, String, String, long)
+     */
+    Response request(String method, String path, String body) throws IOException {
+        return request(method, path, body, REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Sends a request over the persistent connection and reads the whole response.
+     * If a reused connection has been closed by the agent in the meantime, the request is sent once more
+     * over a new connection.
+     *
+     * @param method  the HTTP method
+     * @param path    the path including the query
+     * @param body    the request body, may be null
+     * @param timeout the time in milliseconds the whole request may take
+     * @return the response
+     * @throws IOException if the request failed or took too long
+     */
+    synchronized Response request(String method, String path, String body, long timeout) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        final byte[] request = encode(method, path, body);
+        final boolean reused = socket != null;
+        try {
+            return exchange(request, deadline);
+        } catch (StaleConnectionException e) {
+            close();
+            if (!reused) {
+                throw e;
+            }
+            try {
+                return exchange(request, deadline);
+            } catch (IOException retryException) {
+                close();
+                throw retryException;
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the connection, the next request will open a new one.
+     */
+    synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                JavaAgent.LOGGER.fine(e.getMessage());
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    private URL url() throws MalformedURLException {
+        if (url == null) {
+            url = new URL(address);
+            if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+                throw new MalformedURLException("Unsupported protocol: " + url.getProtocol());
+            }
+        }
+        return url;
+    }
+
+    private byte[] encode(String method, String path, String body) throws MalformedURLException {
+        final URL base = url();
+        final byte[] content = body == null ? new byte[0] : body.getBytes(UTF_8);
+        final StringBuilder header = new StringBuilder(256)
+                .append(method).append(' ').append(base.getPath().replaceAll("/$", "")).append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(base.getHost());
+        if (base.getPort() != -1) {
+            header.append(':').append(base.getPort());
+        }
+        header.append("\r\n");
+        if (token != null) {
+            header.append("X-Consul-Token: ").append(token).append("\r\n");
+        }
+        header.append("Accept: application/json\r\n")
+                .append("Content-Type: application/json\r\n")
+                .append("Content-Length: ").append(content.length).append("\r\n")
+                .append("Connection: keep-alive\r\n\r\n");
+        final byte[] head = header.toString().getBytes(UTF_8);
+        final byte[] request = new byte[head.length + content.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(content, 0, request, head.length, content.length);
+        return request;
+    }
+
+    private void connect(long deadline) throws IOException {
+        final URL base = url();
+        final boolean https = "https".equals(base.getProtocol());
+        final int port = base.getPort() != -1 ? base.getPort() : (https ? 443 : 80);
+        final Socket plainSocket = new Socket();
+        Socket newSocket = plainSocket;
+        try {
+            plainSocket.setTcpNoDelay(true);
+            plainSocket.setKeepAlive(true);
+            plainSocket.connect(new InetSocketAddress(base.getHost(), port),
+                    (int) Math.max(1, Math.min(CONNECT_TIMEOUT, deadline - System.currentTimeMillis())));
+            if (https) {
+                newSocket = startTLS(plainSocket, base.getHost(), port, deadline);
+            }
+        } catch (IOException e) {
+            plainSocket.close();
+            throw e;
+        }
+        CONNECTIONS_OPENED.inc();
+        socket = newSocket;
+        in = new BufferedInputStream(newSocket.getInputStream());
+        out = newSocket.getOutputStream();
+    }
+
+    /**
+     * Layers TLS over the connected socket. The host name is sent by SNI and has to match the certificate,
+     * like HttpsURLConnection does it.
+     */
+    private static Socket startTLS(Socket plainSocket, String host, int port, long deadline) throws IOException {
+        final SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                .createSocket(plainSocket, host, port, true);
+        final SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    private Response exchange(byte[] request, long deadline) throws IOException {
+        if (socket == null) {
+            connect(deadline);
+        }
+        try {
+            out.write(request);
+            out.flush();
+        } catch (IOException e) {
+            throw new StaleConnectionException(e.getMessage());
+        }
+
+        final String statusLine = readLine(deadline, true);
+        final String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        final Response response = new Response();
+        try {
+            response.status = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        String line;
+        while (!"".equals(line = readLine(deadline, false))) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+
+        boolean keepAlive = !"HTTP/1.0".equals(status[0]);
+        final String connection = response.getHeader("Connection");
+        if (connection != null) {
+            keepAlive = !connection.toLowerCase(Locale.US).contains("close");
+        }
+        final String transferEncoding = response.getHeader("Transfer-Encoding");
+        final String contentLength = response.getHeader("Content-Length");
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            readChunked(body, deadline);
+        } else if (contentLength != null) {
+            try {
+                readFully(body, Long.parseLong(contentLength), deadline);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid content length: " + contentLength);
+            }
+        } else if (response.status != 204 && response.status != 304) {
+            // without a length the body ends with the connection
+            readFully(body, -1, deadline);
+            keepAlive = false;
+        }
+        response.body = new String(body.toByteArray(), UTF_8);
+        if (!keepAlive) {
+            close();
+        }
+        return response;
+    }
+
+    private void setTimeout(long deadline) throws IOException {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Consul request exceeded its deadline");
+        }
+        socket.setSoTimeout((int) Math.min(readTimeout, remaining));
+    }
+
+    private String readLine(long deadline, boolean first) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        while (true) {
+            setTimeout(deadline);
+            final int c;
+            try {
+                c = in.read();
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if (first && line.length() == 0) {
+                    // the agent reset the idle connection before it saw the request
+                    throw new StaleConnectionException(e.getMessage());
+                }
+                throw e;
+            }
+            if (c == -1) {
+                if (first && line.length() == 0) {
+                    // the agent closed the idle connection before it saw the request
+                    throw new StaleConnectionException("Connection closed by consul");
+                }
+                throw new EOFException("Unexpected end of the consul response");
+            }
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > MAX_LINE_LENGTH) {
+                throw new IOException("Consul response line too long");
+            }
+        }
+        return line.toString();
+    }
+
+    private void readFully(ByteArrayOutputStream body, long length, long deadline) throws IOException {
+        final byte[] buffer = new byte[4096];
+        long remaining = length;
+        while (length == -1 || remaining > 0) {
+            setTimeout(deadline);
+            final int read = in.read(buffer, 0, length == -1 ? buffer.length : (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                if (length == -1) {
+                    return;
+                }
+                throw new EOFException("Unexpected end of the consul response");
+            }
+            body.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private void readChunked(ByteArrayOutputStream body, long deadline) throws IOException {
+        while (true) {
+            final String sizeLine = readLine(deadline, false);
+            final int extension = sizeLine.indexOf(';');
+            final long size;
+            try {
+                size = Long.parseLong((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                // skip the trailer
+                while (!"".equals(readLine(deadline, false))) {
+                    continue;
+                }
+                return;
+            }
+            readFully(body, size, deadline);
+            readLine(deadline, false);
+        }
+    }
+
+    /**
+     * Response holds the status, the headers and the body of a consul response.
+     */
+    static class Response {
+        private final Map<String, String> headers = new HashMap<String, String>();
+        int status;
+        String body;
+
+        boolean isSuccessful() {
+            return 200 <= status && status <= 299;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * StaleConnectionException signals that the request did not reach consul, so it can be sent again.
+     */
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(String message) {
+            super(message);
+        }
+    }
+}
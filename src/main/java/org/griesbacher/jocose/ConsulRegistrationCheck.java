@@ -2,55 +2,109 @@ package org.griesbacher.jocose;
 
 import io.prometheus.client.Gauge;
 
+import java.io.IOException;
+
 /**
  * ConsulRegistrationCheck will check if the service is still registered at consul.
+ * It either polls consul on the shared scheduler or watches the registration with blocking queries.
  */
-class ConsulRegistrationCheck extends Thread {
+class ConsulRegistrationCheck implements Runnable {
     private static final Gauge CONSUL_REGISTRATION_TEST = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_registration_check_duration")
             .help("Duration in seconds to check the consul database.").register();
     private static final Gauge CONSUL_GOT_DEREGISTERED = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_got_deregistered")
             .help("Amount of times the service got falsely deregistered and had to reregister.").register();
+    private static final Gauge CONSUL_WATCH_REQUESTS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_registration_watch_requests")
+            .help("Amount of blocking queries sent to watch the registration.").register();
 
     private final Consul consul;
     private final long interval;
+    private final double jitter;
+    private final long watchWait;
+    private Scheduler.Task task;
+    private Thread watcher;
 
     /**
-     * Generates a new ConsulRegistrationCheck thread.
+     * Generates a new ConsulRegistrationCheck.
      *
-     * @param consul   the Consul configuration object
-     * @param interval in seconds to check the consul server
+     * @param consul    the Consul configuration object
+     * @param interval  in milliseconds to check the consul server, in watch mode the delay after a failure
+     * @param jitter    the fraction of the interval, by which each check may randomly be delayed or advanced
+     * @param watchWait in milliseconds a blocking query waits for a change, 0 polls instead of watching
      */
-    ConsulRegistrationCheck(Consul consul, long interval) {
-        this.setDaemon(true);
+    ConsulRegistrationCheck(Consul consul, long interval, double jitter, long watchWait) {
         this.consul = consul;
         this.interval = interval;
+        this.jitter = jitter;
+        this.watchWait = watchWait;
         CONSUL_GOT_DEREGISTERED.set(0);
     }
 
     /**
-     * Generates a new ConsulRegistrationCheck thread. The interval will be 30s.
-     *
-     * @param consul the Consul configuration object
+     * Starts checking, the first check registers the service immediately.
+     * A blocking query can take minutes, so the watch runs on its own thread instead of the shared scheduler.
      */
-    ConsulRegistrationCheck(Consul consul) {
-        this(consul, 30);
+    synchronized void start() {
+        if (watchWait > 0) {
+            watcher = new Thread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            }, "jocose-consul-watch");
+            watcher.setDaemon(true);
+            watcher.start();
+        } else {
+            task = Scheduler.schedule(this, 0, interval, jitter);
+        }
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+        }
+        if (watcher != null) {
+            watcher.interrupt();
+        }
     }
 
-    @Override
     public void run() {
-        while (true) {
-            final long start = System.nanoTime();
-            if (!consul.isServiceRegistered()) {
-                CONSUL_GOT_DEREGISTERED.inc();
-                JavaAgent.LOGGER.fine("Tried to reregister: " + consul.registerService());
-            }
-            CONSUL_REGISTRATION_TEST.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        final long start = System.nanoTime();
+        if (!consul.isServiceRegistered()) {
+            CONSUL_GOT_DEREGISTERED.inc();
+            JavaAgent.LOGGER.fine("Tried to reregister: " + consul.registerService());
+        }
+        CONSUL_REGISTRATION_TEST.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+    }
 
+    /**
+     * Keeps one blocking query open, which returns as soon as the registration changes.
+     * If consul can not be reached or does not support the query, the next try is delayed by the interval.
+     */
+    private void watch() {
+        String hash = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean failed = false;
             try {
-                Thread.sleep(interval * 1000);
-            } catch (InterruptedException e) {
-                return;
+                CONSUL_WATCH_REQUESTS.inc();
+                hash = consul.watchService(hash, watchWait);
+                if (hash == null) {
+                    CONSUL_GOT_DEREGISTERED.inc();
+                    final boolean registered = consul.registerService();
+                    JavaAgent.LOGGER.fine("Tried to reregister: " + registered);
+                    failed = !registered;
+                }
+            } catch (IOException e) {
+                JavaAgent.LOGGER.fine(e.getMessage());
+                hash = null;
+                failed = true;
+            }
+
+            if (failed) {
+                try {
+                    Thread.sleep(Scheduler.jitter(interval, jitter));
+                } catch (InterruptedException e) {
+                    return;
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
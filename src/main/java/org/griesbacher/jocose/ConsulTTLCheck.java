@@ -0,0 +1,70 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+/**
+ * ConsulTTLCheck reports the ttl check of the service to consul, so consul does not need to request the exporter.
+ */
+class ConsulTTLCheck implements Runnable {
+    private static final Gauge CONSUL_TTL_PASSES = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_ttl_check_passes")
+            .help("Amount of ttl check reports accepted by consul.").register();
+    private static final Gauge CONSUL_TTL_FAILURES = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "consul_ttl_check_failures")
+            .help("Amount of ttl check reports which could not be delivered to consul.").register();
+
+    private final Consul consul;
+    private final double jitter;
+    private long interval;
+    private Scheduler.Task task;
+
+    /**
+     * Generates a new ConsulTTLCheck.
+     *
+     * @param consul   the Consul configuration object
+     * @param interval in milliseconds between two reports
+     * @param jitter   the fraction of the interval, by which each report may randomly be delayed or advanced
+     */
+    ConsulTTLCheck(Consul consul, long interval, double jitter) {
+        this.consul = consul;
+        this.interval = interval;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Schedules the reports, the registration itself reports the check as passing.
+     *
+     * @return the handle to stop the reports
+     */
+    synchronized Scheduler.Task start() {
+        task = Scheduler.heartbeat(this, Scheduler.jitter(interval, jitter), interval, jitter);
+        return task;
+    }
+
+    /**
+     * Reports with a new interval, like after the ttl of a reloaded config changed.
+     *
+     * @param newInterval in milliseconds between two reports
+     */
+    synchronized void reschedule(long newInterval) {
+        if (newInterval == interval) {
+            return;
+        }
+        interval = newInterval;
+        if (task != null) {
+            task.cancel();
+            start();
+        }
+    }
+
+    synchronized long getInterval() {
+        return interval;
+    }
+
+    public void run() {
+        // a failed report is not retried, the next one follows before the ttl expires
+        if (consul.passCheck()) {
+            CONSUL_TTL_PASSES.inc();
+        } else {
+            CONSUL_TTL_FAILURES.inc();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * HostRegistry is a memory-mapped file with a fixed amount of slots, one for each agent of the host.
+ * A slot records the pid, port, consul service ID and the last heartbeat of its agent.
+ * An agent claims a slot by locking its region of the file and keeps the lock while it runs. The operating system
+ * drops the lock when the process dies, so a used slot which can be locked by another agent belongs to a dead one.
+ */
+class HostRegistry {
+    static final String DEFAULT_FILE = new File(System.getProperty("java.io.tmpdir"), "jocose-agents.registry").getPath();
+    static final int SLOTS = 256;
+    static final int SLOT_SIZE = 128;
+    static final long HEARTBEAT_INTERVAL = 10 * 1000;
+    // a living agent which did not beat for this long is considered hanging
+    static final long STALE_AFTER = 6 * HEARTBEAT_INTERVAL;
+    private static final Gauge HOST_AGENTS = Gauge.build().name(PROMETHEUS_PREFIX + "host_registry_agents")
+            .help("Amount of agents in the host registry, counted at the last heartbeat").register();
+    private static final Gauge HOST_SLOT = Gauge.build().name(PROMETHEUS_PREFIX + "host_registry_slot")
+            .help("Slot of this agent in the host registry").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x4a435352;
+    private static final int VERSION = 1;
+    private static final int FREE = 0;
+    private static final int USED = 1;
+    private static final int STATE = 0;
+    private static final int PID = 4;
+    private static final int HEARTBEAT = 8;
+    private static final int PORT = 16;
+    private static final int ID_LENGTH = 20;
+    private static final int ID = 22;
+    private static final int MAX_ID_LENGTH = SLOT_SIZE - ID;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int slot = -1;
+    private FileLock slotLock;
+    private Scheduler.Task heartbeat;
+
+    /**
+     * Maps the registry file, it will be created if it does not exist.
+     *
+     * @param path the path of the registry file
+     * @throws IOException if the file could not be mapped or belongs to something else
+     */
+    HostRegistry(String path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        try {
+            channel = file.getChannel();
+            final int size = HEADER_SIZE + SLOTS * SLOT_SIZE;
+            // the header is written under a lock, so two new agents do not initialize the file at once
+            final FileLock headerLock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (buffer.getInt(0) == 0) {
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, SLOTS);
+                    buffer.putInt(0, MAGIC);
+                } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != SLOTS) {
+                    throw new IOException("Not a host registry of this version: " + path);
+                }
+            } finally {
+                headerLock.release();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Claims a free slot for this process and keeps it alive by a heartbeat.
+     *
+     * @param port      the port of the exporter
+     * @param serviceID the consul service ID, empty if consul is disabled
+     * @return the claimed slot, -1 if every slot is in use
+     */
+    synchronized int claim(int port, String serviceID) {
+        for (int i = 0; i < SLOTS; i++) {
+            final FileLock lock = tryLock(i);
+            if (lock == null) {
+                continue;
+            }
+            // the previous owner is gone, even if the slot is still marked as used
+            slot = i;
+            slotLock = lock;
+            final int offset = offset(i);
+            buffer.putInt(offset + PID, pid());
+            buffer.putLong(offset + HEARTBEAT, System.currentTimeMillis());
+            buffer.putInt(offset + PORT, port);
+            final byte[] id = truncate(serviceID);
+            buffer.putShort(offset + ID_LENGTH, (short) id.length);
+            for (int b = 0; b < id.length; b++) {
+                buffer.put(offset + ID + b, id[b]);
+            }
+            // the slot becomes visible only after it has been filled
+            buffer.putInt(offset + STATE, USED);
+            HOST_SLOT.set(i);
+            heartbeat = Scheduler.heartbeat(new Runnable() {
+                public void run() {
+                    beat();
+                }
+            }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, 0.1);
+            return i;
+        }
+        return -1;
+    }
+
+    synchronized void beat() {
+        if (slot != -1) {
+            buffer.putLong(offset(slot) + HEARTBEAT, System.currentTimeMillis());
+        }
+        HOST_AGENTS.set(entries().size());
+    }
+
+    /**
+     * Frees the slot of this process.
+     */
+    synchronized void release() {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
+        if (slot == -1) {
+            return;
+        }
+        buffer.putInt(offset(slot) + STATE, FREE);
+        buffer.force();
+        try {
+            slotLock.release();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+        slot = -1;
+    }
+
+    /**
+     * Lists the agents of the host. Slots of dead agents are freed on the way.
+     *
+     * @return the living agents, including this one
+     */
+    synchronized List<Entry> entries() {
+        final List<Entry> entries = new ArrayList<Entry>();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < SLOTS; i++) {
+            final int offset = offset(i);
+            if (buffer.getInt(offset + STATE) != USED) {
+                continue;
+            }
+            if (i != slot) {
+                final FileLock lock = tryLock(i);
+                if (lock != null) {
+                    // nobody holds the slot anymore
+                    buffer.putInt(offset + STATE, FREE);
+                    releaseQuietly(lock);
+                    continue;
+                }
+            }
+            final Entry entry = new Entry();
+            entry.slot = i;
+            entry.pid = buffer.getInt(offset + PID);
+            entry.heartbeat = buffer.getLong(offset + HEARTBEAT);
+            entry.port = buffer.getInt(offset + PORT);
+            final int length = Math.min(Math.max(buffer.getShort(offset + ID_LENGTH), 0), MAX_ID_LENGTH);
+            final byte[] id = new byte[length];
+            for (int b = 0; b < length; b++) {
+                id[b] = buffer.get(offset + ID + b);
+            }
+            entry.serviceID = new String(id, UTF_8);
+            if (now - entry.heartbeat > STALE_AFTER) {
+                continue;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Releases the slot and unmaps the file.
+     */
+    synchronized void close() {
+        release();
+        try {
+            file.close();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+    }
+
+    private FileLock tryLock(int slotIndex) {
+        try {
+            return channel.tryLock(offset(slotIndex), SLOT_SIZE, false);
+        } catch (OverlappingFileLockException e) {
+            // held by this JVM
+            return null;
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+            return null;
+        }
+    }
+
+    private static void releaseQuietly(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+    }
+
+    private static int offset(int slotIndex) {
+        return HEADER_SIZE + slotIndex * SLOT_SIZE;
+    }
+
+    private static byte[] truncate(String serviceID) {
+        final byte[] id = serviceID.getBytes(UTF_8);
+        if (id.length <= MAX_ID_LENGTH) {
+            return id;
+        }
+        final byte[] truncated = new byte[MAX_ID_LENGTH];
+        System.arraycopy(id, 0, truncated, 0, MAX_ID_LENGTH);
+        return truncated;
+    }
+
+    static int pid() {
+        // the name of the runtime is pid@hostname on the common JVMs
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Entry is the content of a used slot.
+     */
+    static class Entry {
+        int slot;
+        int pid;
+        int port;
+        long heartbeat;
+        String serviceID;
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "slot=" + slot +
+                    ", pid=" + pid +
+                    ", port=" + port +
+                    ", heartbeat=" + heartbeat +
+                    ", serviceID='" + serviceID + '\'' +
+                    '}';
+        }
+    }
+}
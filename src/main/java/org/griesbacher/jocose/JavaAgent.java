@@ -1,18 +1,25 @@
 package org.griesbacher.jocose;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.hotspot.DefaultExports;
 import io.prometheus.jmx.JmxCollector;
 
+import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import java.io.*;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
@@ -23,6 +30,13 @@ public class JavaAgent {
     static final Logger LOGGER = Logger.getLogger(JavaAgent.class.getName());
     private static final String SERVICE_NAME = "serviceName";
     private static final String CONFIG = "config";
+    private static final String THREADS = "threads";
+    private static final String SERVER = "server";
+    private static final String NIO_SERVER = "nio";
+    private static final String ASYNC = "async";
+    private static final String MAX_AGE = "maxAge";
+    private static final String STALE_WHILE_REVALIDATE = "staleWhileRevalidate";
+    private static final long DEFAULT_ASYNC_DEADLINE = 60 * 1000;
     private static final Gauge WEB_SERVER_CREATION = Gauge.build().name(PROMETHEUS_PREFIX + "web_server_creation_seconds")
             .help("Time in seconds to start the web server").register();
     private static final Gauge START_UP = Gauge.build().name(PROMETHEUS_PREFIX + "startup_seconds")
@@ -31,17 +45,31 @@ public class JavaAgent {
             .help("Time in seconds to read and parse the config").register();
     private static final Gauge PROMETHEUS_REGISTRATION = Gauge.build().name(PROMETHEUS_PREFIX + "prometheus_registration_seconds")
             .help("Time in seconds to start the jmx / default exporter").register();
+    private static final Gauge CONSUL_SETUP = Gauge.build().name(PROMETHEUS_PREFIX + "consul_setup_seconds")
+            .help("Time in seconds to set up the consul registration").register();
+    private static final Gauge STARTUP_READY = Gauge.build().name(PROMETHEUS_PREFIX + "startup_ready")
+            .help("1 if the startup is finished, 0 while it is running, -1 if it failed or missed its deadline").register();
+    // set on the thread of an asynchronous startup, its errors must not end the JVM of the application
+    private static final ThreadLocal<Boolean> ASYNC_STARTUP = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+    // the first outcome of the startup wins, a startup finishing after its deadline stays failed
+    private static final AtomicBoolean STARTUP_SETTLED = new AtomicBoolean();
 
 
-    static PrometheusHTTPServer server;
-    static InetSocketAddress address;
-    static Config ymlConfig;
+    static volatile MetricsServer server;
+    static volatile InetSocketAddress address;
+    static volatile Config ymlConfig;
 
     private JavaAgent() {
     }
 
     /**
      * Returns with an error code 1 and the given message.
+     * An asynchronous startup is aborted with an IllegalStateException instead, the JVM keeps running.
      *
      * @param s       the format string for the message
      * @param objects the params for the format string
@@ -51,10 +79,27 @@ public class JavaAgent {
             s += "\n";
         }
         System.err.printf(s, objects);
+        if (ASYNC_STARTUP.get()) {
+            throw new IllegalStateException(String.format(s.trim(), objects));
+        }
         System.exit(1);
     }
 
-    private static String readConfig(Reader reader) throws IOException {
+    /**
+     * Sets the outcome of the startup, if it is not settled yet.
+     *
+     * @param ready 1 if the startup is finished, -1 if it failed
+     * @return false if the startup has already been settled
+     */
+    private static boolean settleStartUp(int ready) {
+        if (!STARTUP_SETTLED.compareAndSet(false, true)) {
+            return false;
+        }
+        STARTUP_READY.set(ready);
+        return true;
+    }
+
+    static String readConfig(Reader reader) throws IOException {
         char[] arr = new char[1024];
         StringBuilder buffer = new StringBuilder();
         int numCharsRead;
@@ -66,34 +111,241 @@ public class JavaAgent {
     }
 
 
-    private static void startWebServer(String host) throws IOException {
+    private static MetricsServer createWebServer(InetSocketAddress address, ScrapeCache cache) throws IOException {
+        if (NIO_SERVER.equals(ymlConfig.exporter.server)) {
+            return new NioMetricsServer(address, CollectorRegistry.defaultRegistry, cache, ymlConfig.exporter);
+        }
+        return new MetricsHTTPServer(address, CollectorRegistry.defaultRegistry, true, cache, ymlConfig.exporter);
+    }
+
+    private static ScrapeCache startWebServer(final String host) throws IOException {
+        final boolean background = ymlConfig.exporter.collectionInterval > 0;
+        final ScrapeCache cache;
+        if (background) {
+            cache = new ScrapeCache(CollectorRegistry.defaultRegistry, Long.MAX_VALUE);
+        } else {
+            cache = new ScrapeCache(CollectorRegistry.defaultRegistry, ymlConfig.exporter.cacheTTL);
+        }
+
         if (ymlConfig.ownPort == -1) {
             if (!ymlConfig.enabled) {
                 errorExit("No valid port has been given, but the consul ymlConfig section is disabled");
             }
 
             //Trying to find an open port
-            for (int currentPort = ymlConfig.startPort; currentPort < ymlConfig.endPort; currentPort++) {
-                if ("".equals(host)) {
-                    address = new InetSocketAddress(currentPort);
-                } else {
-                    address = new InetSocketAddress(host, currentPort);
+            final PortAllocator allocator = new PortAllocator(
+                    ymlConfig.portLeaseFile, ymlConfig.startPort, ymlConfig.endPort
+            );
+            final int allocatedPort = allocator.allocate(new PortAllocator.Binder() {
+                public boolean bind(int port) {
+                    final InetSocketAddress portAddress;
+                    if ("".equals(host)) {
+                        portAddress = new InetSocketAddress(port);
+                    } else {
+                        portAddress = new InetSocketAddress(host, port);
+                    }
+                    try {
+                        server = createWebServer(portAddress, cache);
+                        address = portAddress;
+                        return true;
+                    } catch (IOException e) {
+                        LOGGER.fine(e.getMessage());
+                        return false;
+                    }
                 }
-                try {
-                    server = new PrometheusHTTPServer(address, CollectorRegistry.defaultRegistry, true);
-                    break;
-                } catch (IOException e) {
-                    LOGGER.fine(e.getMessage());
-                }
-            }
+            });
 
             if (server == null) {
                 errorExit("No free port could be found");
             }
+            // the port is free again when the JVM ends
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    allocator.release(allocatedPort);
+                }
+            });
         } else {
             //Use the given host:port combination
             address = new InetSocketAddress(ymlConfig.ownHost, ymlConfig.ownPort);
-            server = new PrometheusHTTPServer(address, CollectorRegistry.defaultRegistry, true);
+            server = createWebServer(address, cache);
+        }
+
+        if (background) {
+            new BackgroundCollector(cache, ymlConfig.exporter.collectionInterval).start();
+        }
+        return cache;
+    }
+
+    /**
+     * Creates the jmx collector of the config.
+     *
+     * @param configString the config
+     * @param parallelism  the amount of partitions to collect in parallel, 0 collects all MBeans at once
+     * @return the collector, which is not registered yet
+     * @throws MalformedObjectNameException if the config contains invalid object names
+     */
+    static Collector createCollector(String configString, int parallelism) throws MalformedObjectNameException {
+        if (parallelism > 0) {
+            return new PartitionedJmxCollector(configString, parallelism);
+        }
+        return new JmxCollector(configString);
+    }
+
+    /**
+     * Watches the source of the config for changes. A config given as agent argument only can not change.
+     */
+    private static void startReloader(
+            ConfigReloader reloader, File configFile, String configURL, RemoteConfigCache configCache,
+            ConsulConfigSource configSource
+    ) {
+        if (configFile != null) {
+            try {
+                reloader.watchFile(configFile);
+            } catch (IOException e) {
+                LOGGER.warning("Config file can not be watched: " + e.getMessage());
+            }
+        } else if (configURL != null) {
+            reloader.pollURL(configCache, configURL, ymlConfig.exporter.reloadInterval, ymlConfig.jitter);
+        } else if (configSource != null) {
+            final long wait = ymlConfig.watchWait > 0 ? ymlConfig.watchWait : ConsulConfigSource.DEFAULT_WAIT;
+            configSource.watch(reloader, wait, ymlConfig.exporter.reloadInterval, ymlConfig.jitter);
+        }
+    }
+
+    /**
+     * Records this agent in the host registry, if it is configured. A broken registry does not stop the agent.
+     */
+    private static void registerAtHost(String serviceID) {
+        if (ymlConfig.hostRegistry == null) {
+            return;
+        }
+        final HostRegistry registry;
+        try {
+            registry = new HostRegistry(ymlConfig.hostRegistry);
+        } catch (IOException e) {
+            LOGGER.warning("Host registry not usable: " + e.getMessage());
+            return;
+        }
+        if (registry.claim(address.getPort(), serviceID) == -1) {
+            LOGGER.warning("Host registry is full: " + ymlConfig.hostRegistry);
+            registry.close();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                registry.close();
+            }
+        });
+    }
+
+    /**
+     * Writes the metrics for the sidecar of the host, if a snapshot directory is configured.
+     */
+    private static void startSnapshots(ScrapeCache cache, String service) {
+        if (ymlConfig.exporter.snapshotDirectory == null) {
+            return;
+        }
+        final SnapshotWriter writer;
+        try {
+            writer = new SnapshotWriter(
+                    cache, new File(ymlConfig.exporter.snapshotDirectory), ymlConfig.exporter.snapshotInterval
+            );
+        } catch (IOException e) {
+            LOGGER.warning("Snapshots can not be written: " + e.getMessage());
+            return;
+        }
+        writer.setService(service);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                writer.stop();
+            }
+        });
+    }
+
+    /**
+     * Pushes the metrics to the Pushgateway, if one is configured. The last push happens when the JVM ends.
+     * The grouping key contains the host and an id of the JVM, the hadoop task attempt, the YARN container or the pid,
+     * so the pushes of parallel JVMs do not replace each other.
+     */
+    private static void startPush(ScrapeCache cache) throws IOException {
+        if (ymlConfig.exporter.push == null) {
+            return;
+        }
+        String job = ymlConfig.serviceName;
+        if (job == null || "".equals(job.trim())) {
+            job = "jocose";
+        }
+        final Map<String, String> labels = new LinkedHashMap<String, String>();
+        labels.put("instance", InetAddress.getLocalHost().getHostName());
+        final String hadoopJob = ConfigHandler.searchJob();
+        if (!"".equals(hadoopJob)) {
+            labels.put("hadoop_job", hadoopJob);
+        }
+        // a push replaces the whole group, so every JVM needs its own
+        String jvm = ConfigHandler.searchAttempt();
+        if ("".equals(jvm)) {
+            jvm = System.getenv("CONTAINER_ID");
+        }
+        if (jvm == null || "".equals(jvm)) {
+            jvm = String.valueOf(HostRegistry.pid());
+        }
+        labels.put("jvm", jvm);
+        String base = ymlConfig.exporter.push;
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        final URL url;
+        try {
+            url = new URL(base + MetricsPusher.groupingPath(job, labels));
+        } catch (MalformedURLException e) {
+            errorExit("The push url is not valid: '%s'", ymlConfig.exporter.push);
+            return;
+        }
+        final MetricsPusher pusher = new MetricsPusher(
+                cache, url, ymlConfig.exporter.pushGzip, ymlConfig.exporter.pushMaxBytes,
+                ymlConfig.exporter.pushDeleteAfter
+        );
+        pusher.start(ymlConfig.exporter.pushInterval, ymlConfig.jitter);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                pusher.stop();
+            }
+        });
+    }
+
+    /**
+     * Lets the platform MBeanServer cache the metadata of the MBeans, if it is configured.
+     * This only works if the platform MBeanServer has not been created before and no other builder is configured.
+     * The platform MBeanServer is created here, within premain, application servers which install their own builder
+     * or log manager later, like WildFly, fail then.
+     */
+    private static void installMetadataCache() {
+        if (!ymlConfig.exporter.metadataCache) {
+            return;
+        }
+        CachingMBeanServerBuilder.setInfoTTL(ymlConfig.exporter.metadataCacheTTL);
+        CachingMBeanServerBuilder.setBulkReads(ymlConfig.exporter.bulkReads);
+        final String previous = System.getProperty(CachingMBeanServerBuilder.BUILDER_PROPERTY);
+        if (previous == null) {
+            System.setProperty(CachingMBeanServerBuilder.BUILDER_PROPERTY, CachingMBeanServerBuilder.class.getName());
+        }
+        final MBeanServer server;
+        try {
+            server = ManagementFactory.getPlatformMBeanServer();
+        } finally {
+            // MBeanServers created later by the application must not get the cache
+            if (previous == null) {
+                System.clearProperty(CachingMBeanServerBuilder.BUILDER_PROPERTY);
+            }
+        }
+        if (!(server instanceof CachingMBeanServer)) {
+            LOGGER.warning("The MBean metadata cache is not used, the platform MBeanServer existed before the agent " +
+                    "or has been created by another builder");
         }
     }
 
@@ -116,8 +368,19 @@ public class JavaAgent {
                 "-p [port] port to start exporter. If empty a free port will be used, this requires a configuration file\n" +
                 "-c <path to your configuration>. Possibilities:\n" +
                 "\tfile:///path/to/your/ymlConfig.yml\n" +
-                "\thttp://https://url/to/your/ymlConfig.yml\n" +
+                "\thttp://url/to/your/ymlConfig.yml or https://url/to/your/ymlConfig.yml\n" +
+                "\tconsul://key/of/your/ymlConfig in the consul KV store of CONSUL_HTTP_ADDR, with CONSUL_HTTP_TOKEN\n" +
+                "-m [max age] a downloaded config is cached and used without a request for this duration, like 5m.\n" +
+                "\tIf empty every start revalidates the cached config\n" +
+                "-w [stale] within this duration after the max age the cached config is used and revalidated\n" +
+                "\tin the background. If empty the revalidation is awaited\n" +
                 "-s serviceName, this will win against the value from the configuration file\n" +
+                "-t [threads|virtual] threads of the web server or virtual for a virtual thread per request (Java 21+),\n" +
+                "\tthis will win against the value from the configuration file\n" +
+                "-e [httpserver|nio] web server implementation, nio uses a single thread for all connections,\n" +
+                "\tthis will win against the value from the configuration file\n" +
+                "-a[deadline] start asynchronously, the agent returns immediately and starts within the deadline,\n" +
+                "\tlike 30s. If empty 60s will be used\n" +
                 "-h this message" +
                 "Example:\n" +
                 "-javaagent:/path/to/JavaAgent.jar=-h127.0.0.1,-cfile:///tmp/ymlConfig.yml";
@@ -125,7 +388,9 @@ public class JavaAgent {
         HashMap<String, String> argMap = new HashMap<String, String>() {
         };
         for (String arg : args) {
-            if (arg.length() > 2) {
+            if ("-a".equals(arg.trim())) {
+                argMap.put(ASYNC, "");
+            } else if (arg.length() > 2) {
                 String prefix = arg.substring(0, 2);
                 if ("-h".equals(prefix)) {
                     errorExit(usageText);
@@ -137,6 +402,16 @@ public class JavaAgent {
                     argMap.put(CONFIG, arg.substring(2).trim());
                 } else if ("-s".equals(prefix)) {
                     argMap.put(SERVICE_NAME, arg.substring(2).trim());
+                } else if ("-t".equals(prefix)) {
+                    argMap.put(THREADS, arg.substring(2).trim());
+                } else if ("-e".equals(prefix)) {
+                    argMap.put(SERVER, arg.substring(2).trim());
+                } else if ("-a".equals(prefix)) {
+                    argMap.put(ASYNC, arg.substring(2).trim());
+                } else if ("-m".equals(prefix)) {
+                    argMap.put(MAX_AGE, arg.substring(2).trim());
+                } else if ("-w".equals(prefix)) {
+                    argMap.put(STALE_WHILE_REVALIDATE, arg.substring(2).trim());
                 }
             }
         }
@@ -161,10 +436,82 @@ public class JavaAgent {
             port = -1;
         }
 
+        STARTUP_SETTLED.set(false);
+        STARTUP_READY.set(0);
+        if (argMap.containsKey(ASYNC)) {
+            final long deadline;
+            if ("".equals(argMap.get(ASYNC))) {
+                deadline = DEFAULT_ASYNC_DEADLINE;
+            } else {
+                deadline = ConfigHandler.parseDuration(argMap.get(ASYNC));
+            }
+            startAsync(args, argMap, host, port, overallStart, deadline);
+        } else {
+            startUp(args, argMap, host, port, overallStart);
+        }
+    }
+
+    private static long durationArgument(HashMap<String, String> argMap, String key) {
+        if (!argMap.containsKey(key) || "".equals(argMap.get(key))) {
+            return 0;
+        }
+        return ConfigHandler.parseDuration(argMap.get(key));
+    }
 
+    /**
+     * Runs the startup on a background thread, so the application does not wait for it.
+     * If the startup is not finished within the deadline, it will be interrupted.
+     */
+    private static void startAsync(
+            final String[] args, final HashMap<String, String> argMap, final String host, final int port,
+            final long overallStart, final long deadline
+    ) {
+        final Thread startUpThread = new Thread(new Runnable() {
+            public void run() {
+                ASYNC_STARTUP.set(true);
+                try {
+                    startUp(args, argMap, host, port, overallStart);
+                } catch (IOException e) {
+                    failed(e);
+                } catch (MalformedObjectNameException e) {
+                    failed(e);
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+            }
+
+            private void failed(Exception e) {
+                LOGGER.severe("Asynchronous startup failed: " + e);
+                settleStartUp(-1);
+            }
+        }, "jocose-startup");
+        startUpThread.setDaemon(true);
+        startUpThread.start();
+
+        Scheduler.once(new Runnable() {
+            public void run() {
+                if (settleStartUp(-1)) {
+                    LOGGER.warning(String.format("Asynchronous startup missed its deadline of %dms", deadline));
+                    startUpThread.interrupt();
+                }
+            }
+        }, deadline);
+    }
+
+    /**
+     * Reads the configuration and starts the collectors, the web server and the consul registration in this order.
+     */
+    private static void startUp(
+            String[] args, HashMap<String, String> argMap, String host, int port, long overallStart
+    ) throws IOException, MalformedObjectNameException {
         //Check file argument
         final long configStart = System.nanoTime();
         final String configString;
+        // the source of the config, to reload it later
+        File configFile = null;
+        String configURL = null;
+        RemoteConfigCache configCache = null;
+        ConsulConfigSource configSource = null;
         if (argMap.containsKey(CONFIG)) {
             String[] fileSplitted = argMap.get(CONFIG).split("://", 2);
             if (fileSplitted.length != 2) {
@@ -181,8 +528,19 @@ public class JavaAgent {
                     errorExit("File: '%s' does not exists or is a directory", args[1]);
                 }
                 configReader = new FileReader(f);
-            } else if ("http".equals(fileType)) {
-                configReader = new InputStreamReader(new URL(file).openStream());
+                configFile = f;
+            } else if ("http".equals(fileType) || "https".equals(fileType)) {
+                // the old form repeated the protocol: http://https://host/config.yml
+                final String url = file.contains("://") ? file : fileType + "://" + file;
+                configCache = new RemoteConfigCache(
+                        RemoteConfigCache.DEFAULT_DIRECTORY, durationArgument(argMap, MAX_AGE),
+                        durationArgument(argMap, STALE_WHILE_REVALIDATE)
+                );
+                configReader = new StringReader(configCache.fetch(url));
+                configURL = url;
+            } else if ("consul".equals(fileType)) {
+                configSource = ConsulConfigSource.fromEnvironment(file);
+                configReader = new StringReader(configSource.read());
             } else {
                 errorExit("This type '%s' is not supported.", fileType);
                 return;
@@ -201,6 +559,24 @@ public class JavaAgent {
         if (argMap.containsKey(SERVICE_NAME)) {
             ymlConfig.serviceName = argMap.get(SERVICE_NAME);
         }
+        if (argMap.containsKey(THREADS)) {
+            if ("virtual".equals(argMap.get(THREADS))) {
+                ymlConfig.exporter.virtualThreads = true;
+            } else {
+                try {
+                    ymlConfig.exporter.threads = Integer.parseInt(argMap.get(THREADS));
+                    ymlConfig.exporter.virtualThreads = false;
+                } catch (NumberFormatException e) {
+                    errorExit("The given threads argument is not valid: '%s'", argMap.get(THREADS));
+                }
+            }
+        }
+        if (argMap.containsKey(SERVER)) {
+            ymlConfig.exporter.server = argMap.get(SERVER);
+        }
+        if (!NIO_SERVER.equals(ymlConfig.exporter.server) && !"httpserver".equals(ymlConfig.exporter.server)) {
+            errorExit("The web server '%s' is not supported.", ymlConfig.exporter.server);
+        }
         CONFIG_HANDLING.set(nanoSecondsToSeconds(System.nanoTime() - configStart));
 
         //Add host and port
@@ -209,23 +585,36 @@ public class JavaAgent {
 
         //Start collectors
         final long webPrometheus = System.nanoTime();
-        new JmxCollector(configString).register();
+        installMetadataCache();
+        final ReloadableCollector collector = new ReloadableCollector(
+                createCollector(configString, ymlConfig.exporter.parallelism)
+        );
+        collector.register();
         DefaultExports.initialize();
         PROMETHEUS_REGISTRATION.set(nanoSecondsToSeconds(System.nanoTime() - webPrometheus));
 
         //Start metric webservice
         final long webStart = System.nanoTime();
-        startWebServer(host);
+        final ScrapeCache cache = startWebServer(host);
         WEB_SERVER_CREATION.set(nanoSecondsToSeconds(System.nanoTime() - webStart));
 
         // If consul is disabled only the exporter will be started
         if (!ymlConfig.enabled) {
+            registerAtHost("");
+            startSnapshots(cache, ymlConfig.serviceName);
+            startPush(cache);
+            if (ymlConfig.exporter.reload) {
+                startReloader(
+                        new ConfigReloader(collector, null, null, configString, ymlConfig),
+                        configFile, configURL, configCache, configSource
+                );
+            }
+            finishStartUp(overallStart);
             return;
         }
 
-        // Start alive signal
-        PrometheusAliveSignal prometheusAliveSignal = new PrometheusAliveSignal();
-        prometheusAliveSignal.start();
+        // Export alive signal
+        new PrometheusAliveSignal().register();
 
         // From now on only consul interactions follow
 
@@ -249,20 +638,50 @@ public class JavaAgent {
 
         // register at consul
         final long consulStart = System.nanoTime();
+        // a config watch on the same consul agent must back off together with the registration
+        final ConsulCircuitBreaker breaker = configSource != null
+                && configSource.getAddress().equals(ymlConfig.consulAddress)
+                ? configSource.getBreaker() : new ConsulCircuitBreaker();
         Consul consul = new Consul(
                 id, name, ymlConfig.tags, addressForConsul, address.getPort(),
-                ymlConfig.consulAddress, ymlConfig.check
+                ymlConfig.consulAddress, ymlConfig.check, breaker
         );
 
-        // provide website for consul health check
-        server.addUUIDContext(id);
+        ConsulTTLCheck ttlCheck = null;
+        if (ymlConfig.check.isTTL()) {
+            // report the health check to consul
+            ttlCheck = new ConsulTTLCheck(consul, ymlConfig.check.passInterval, ymlConfig.jitter);
+            ttlCheck.start();
+        } else {
+            // provide website for consul health check
+            server.addUUIDContext(id);
+        }
 
         // deregister at consul if registration went well
         Runtime.getRuntime().addShutdownHook(new Consul.Deregister(consul));
 
         // start consul registration alive check
-        new ConsulRegistrationCheck(consul).start();
+        new ConsulRegistrationCheck(
+                consul, ymlConfig.registrationInterval, ymlConfig.jitter, ymlConfig.watchWait
+        ).start();
+        CONSUL_SETUP.set(nanoSecondsToSeconds(System.nanoTime() - consulStart));
+
+        registerAtHost(id);
+        startSnapshots(cache, name);
+        startPush(cache);
+        if (ymlConfig.exporter.reload) {
+            startReloader(
+                    new ConfigReloader(collector, consul, ttlCheck, configString, ymlConfig),
+                    configFile, configURL, configCache, configSource
+            );
+        }
+        finishStartUp(overallStart);
+    }
 
+    private static void finishStartUp(long overallStart) {
         START_UP.set(nanoSecondsToSeconds(System.nanoTime() - overallStart));
+        if (!settleStartUp(1)) {
+            LOGGER.warning("The startup finished after its deadline");
+        }
     }
 }
\ No newline at end of file
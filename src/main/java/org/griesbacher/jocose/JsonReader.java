@@ -0,0 +1,373 @@
+package org.griesbacher.jocose;
+
+import java.io.IOException;
+
+/**
+ * JsonReader is a pull parser for JSON documents, which reads the tokens one after another.
+ * Names and strings can be compared in place, so checking a response does not need to copy its strings.
+ * Like JsonWriter it avoids an external dependency, which could conflict with the monitored application.
+ */
+class JsonReader {
+    /**
+     * Token is the type of the next element of the document.
+     */
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final CharSequence in;
+    private int pos;
+    private int[] stack = new int[16];
+    private int depth;
+    private Token peeked;
+
+    JsonReader(CharSequence in) {
+        this.in = in;
+        stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     *
+     * @return the next token
+     * @throws IOException if the document is malformed
+     */
+    Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        final int context = stack[depth - 1];
+        if (context == EMPTY_ARRAY || context == NONEMPTY_ARRAY) {
+            stack[depth - 1] = NONEMPTY_ARRAY;
+            final char c = nextNonWhitespace();
+            if (c == ']') {
+                return peeked = Token.END_ARRAY;
+            }
+            if (context == NONEMPTY_ARRAY) {
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+            } else {
+                pos--;
+            }
+        } else if (context == EMPTY_OBJECT || context == NONEMPTY_OBJECT) {
+            stack[depth - 1] = DANGLING_NAME;
+            char c = nextNonWhitespace();
+            if (c == '}') {
+                return peeked = Token.END_OBJECT;
+            }
+            if (context == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or '}'");
+                }
+                c = nextNonWhitespace();
+            }
+            if (c != '"') {
+                throw syntaxError("Expected a name");
+            }
+            return peeked = Token.NAME;
+        } else if (context == DANGLING_NAME) {
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+        } else if (context == EMPTY_DOCUMENT) {
+            stack[depth - 1] = NONEMPTY_DOCUMENT;
+        } else {
+            skipWhitespace();
+            if (pos == in.length()) {
+                return peeked = Token.END_DOCUMENT;
+            }
+            throw syntaxError("Expected the end of the document");
+        }
+
+        final char c = nextNonWhitespace();
+        if (c == '{') {
+            return peeked = Token.BEGIN_OBJECT;
+        } else if (c == '[') {
+            return peeked = Token.BEGIN_ARRAY;
+        } else if (c == '"') {
+            return peeked = Token.STRING;
+        }
+        // literals are read from their first char
+        pos--;
+        if (c == 't' || c == 'f') {
+            return peeked = Token.BOOLEAN;
+        } else if (c == 'n') {
+            return peeked = Token.NULL;
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            return peeked = Token.NUMBER;
+        }
+        throw syntaxError("Unexpected character");
+    }
+
+    boolean hasNext() throws IOException {
+        final Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        return readString();
+    }
+
+    /**
+     * Consumes the next name and compares it without copying it.
+     *
+     * @param expected the expected name
+     * @return true if the name equals the expected one
+     * @throws IOException if the next token is no name
+     */
+    boolean nextNameEquals(String expected) throws IOException {
+        expect(Token.NAME);
+        return compareString(expected);
+    }
+
+    String nextString() throws IOException {
+        expect(Token.STRING);
+        return readString();
+    }
+
+    /**
+     * Consumes the next string and compares it without copying it.
+     *
+     * @param expected the expected value
+     * @return true if the string equals the expected one
+     * @throws IOException if the next token is no string
+     */
+    boolean nextStringEquals(String expected) throws IOException {
+        expect(Token.STRING);
+        return compareString(expected);
+    }
+
+    boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        if (literal("true")) {
+            return true;
+        }
+        if (literal("false")) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean");
+    }
+
+    void nextNull() throws IOException {
+        expect(Token.NULL);
+        if (!literal("null")) {
+            throw syntaxError("Expected null");
+        }
+    }
+
+    long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        final int start = pos;
+        skipNumber();
+        try {
+            return Long.parseLong(in.subSequence(start, pos).toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a long");
+        }
+    }
+
+    /**
+     * Skips the next value, including all nested values of objects and arrays.
+     *
+     * @throws IOException if the document is malformed
+     */
+    void skipValue() throws IOException {
+        int nesting = 0;
+        do {
+            final Token token = peek();
+            if (token == Token.BEGIN_OBJECT) {
+                beginObject();
+                nesting++;
+            } else if (token == Token.BEGIN_ARRAY) {
+                beginArray();
+                nesting++;
+            } else if (token == Token.END_OBJECT) {
+                endObject();
+                nesting--;
+            } else if (token == Token.END_ARRAY) {
+                endArray();
+                nesting--;
+            } else if (token == Token.NAME || token == Token.STRING) {
+                peeked = null;
+                while (nextStringChar() != -1) {
+                    continue;
+                }
+            } else if (token == Token.BOOLEAN) {
+                nextBoolean();
+            } else if (token == Token.NULL) {
+                nextNull();
+            } else if (token == Token.NUMBER) {
+                peeked = null;
+                skipNumber();
+            } else {
+                throw syntaxError("Unexpected end of the document");
+            }
+        } while (nesting > 0);
+    }
+
+    private void expect(Token expected) throws IOException {
+        final Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int context) {
+        if (depth == stack.length) {
+            final int[] grown = new int[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = context;
+    }
+
+    private void skipWhitespace() {
+        while (pos < in.length()) {
+            final char c = in.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private char nextNonWhitespace() throws IOException {
+        skipWhitespace();
+        if (pos == in.length()) {
+            throw syntaxError("Unexpected end of the document");
+        }
+        return in.charAt(pos++);
+    }
+
+    private boolean literal(String literal) {
+        if (pos + literal.length() > in.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (in.charAt(pos + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += literal.length();
+        return true;
+    }
+
+    private void skipNumber() {
+        while (pos < in.length()) {
+            final char c = in.charAt(pos);
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private String readString() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = nextStringChar()) != -1) {
+            builder.append((char) c);
+        }
+        return builder.toString();
+    }
+
+    private boolean compareString(String expected) throws IOException {
+        boolean equal = true;
+        int i = 0;
+        int c;
+        // the string is consumed completely, even if it differs early
+        while ((c = nextStringChar()) != -1) {
+            if (equal && (i >= expected.length() || expected.charAt(i) != c)) {
+                equal = false;
+            }
+            i++;
+        }
+        return equal && i == expected.length();
+    }
+
+    /**
+     * Reads the next char of a string and resolves escapes.
+     *
+     * @return the char, -1 if the closing quote has been reached
+     */
+    private int nextStringChar() throws IOException {
+        if (pos == in.length()) {
+            throw syntaxError("Unterminated string");
+        }
+        final char c = in.charAt(pos++);
+        if (c == '"') {
+            return -1;
+        }
+        if (c != '\\') {
+            return c;
+        }
+        if (pos == in.length()) {
+            throw syntaxError("Unterminated escape");
+        }
+        final char escaped = in.charAt(pos++);
+        switch (escaped) {
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                if (pos + 4 > in.length()) {
+                    throw syntaxError("Unterminated escape");
+                }
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(in.charAt(pos++), 16);
+                    if (digit == -1) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = value << 4 | digit;
+                }
+                return value;
+            default:
+                // covers \" \\ and \/
+                return escaped;
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,216 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * MetricsHTTPServer exports the metrics of a registry, like the prometheus HTTPServer does,
+ * but its executor and the way scrapes are answered can be configured.
+ * The prometheus HTTPServer starts its own executor, so the configurable server can not extend it,
+ * PrometheusHTTPServer stays the public subclass of it.
+ */
+class MetricsHTTPServer implements MetricsServer {
+    // the backlog the prometheus HTTPServer uses
+    private static final int BACKLOG = 3;
+
+    private static final Gauge SCRAPES_REJECTED = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "scrapes_rejected")
+            .help("Amount of scrapes which were answered with 503, because the web server was overloaded.").register();
+
+    final HttpServer server;
+    private final ExecutorService executorService;
+
+    MetricsHTTPServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon) throws IOException {
+        this(addr, registry, daemon, new ScrapeCache(registry, 0), new Config.Exporter());
+    }
+
+    /**
+     * Starts the server, scrapes will be answered by the given ScrapeCache.
+     *
+     * @param addr     the address to listen on
+     * @param registry the registry to export
+     * @param daemon   if the server threads should be daemon threads
+     * @param cache    the cache to serve unfiltered scrapes from
+     * @param exporter the exporter section of the configuration
+     * @throws IOException if the server could not be started
+     */
+    MetricsHTTPServer(
+            InetSocketAddress addr, CollectorRegistry registry, boolean daemon, ScrapeCache cache, Config.Exporter exporter
+    ) throws IOException {
+        server = HttpServer.create();
+        server.bind(addr, BACKLOG);
+        executorService = ServerExecutors.create(exporter, daemon);
+        final HttpHandler handler = limit(new CachedMetricHandler(
+                registry, cache, exporter.collectionInterval > 0, exporter.streaming
+        ));
+        server.createContext("/", handler);
+        server.createContext("/metrics", handler);
+        server.setExecutor(executorService);
+        start(daemon);
+    }
+
+    /**
+     * Answers scrapes with 503 while more requests are pending than the threads and the queue of the executor hold.
+     * The queue itself is unbounded, so the dispatcher thread never runs a request and health checks are not dropped.
+     */
+    private HttpHandler limit(final HttpHandler handler) {
+        if (!(executorService instanceof ServerExecutors.CountingExecutor)) {
+            return handler;
+        }
+        final ServerExecutors.CountingExecutor executor = (ServerExecutors.CountingExecutor) executorService;
+        return new HttpHandler() {
+            public void handle(HttpExchange httpExchange) throws IOException {
+                if (executor.isOverloaded()) {
+                    SCRAPES_REJECTED.inc();
+                    httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+                    httpExchange.close();
+                    return;
+                }
+                handler.handle(httpExchange);
+            }
+        };
+    }
+
+    /**
+     * The dispatcher thread inherits the daemon flag of the thread which starts the server.
+     */
+    private void start(boolean daemon) {
+        if (daemon == Thread.currentThread().isDaemon()) {
+            server.start();
+            return;
+        }
+        final FutureTask<Void> startTask = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                server.start();
+            }
+        }, null);
+        new ServerExecutors.NamedThreadFactory("jocose-http-start-", daemon).newThread(startTask).start();
+        try {
+            startTask.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected exception on starting the HTTP server", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the HTTP server.
+     */
+    public void stop() {
+        server.stop(0);
+        executorService.shutdown();
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    static boolean shouldUseCompression(HttpExchange exchange) {
+        final List<String> encodingHeaders = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (encodingHeaders == null) {
+            return false;
+        }
+        for (String encodingHeader : encodingHeaders) {
+            for (String encoding : encodingHeader.split(",")) {
+                if ("gzip".equals(encoding.trim().toLowerCase())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static Set<String> parseQuery(String query) throws IOException {
+        final Set<String> names = new HashSet<String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                final int idx = pair.indexOf("=");
+                if (idx != -1 && "name[]".equals(URLDecoder.decode(pair.substring(0, idx), "UTF-8"))) {
+                    names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+            }
+        }
+        return names;
+    }
+
+    public void addUUIDContext(final String uuid) {
+        server.createContext("/" + uuid, new HttpHandler() {
+            public void handle(HttpExchange httpExchange) throws IOException {
+                byte[] response = uuid.getBytes();
+                httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                httpExchange.getResponseBody().write(response);
+                httpExchange.close();
+            }
+        });
+    }
+
+    /**
+     * CachedMetricHandler answers unfiltered scrapes from the ScrapeCache.
+     * Scrapes which select metric families by name[], or all scrapes if streaming is enabled and no snapshot is used,
+     * are collected directly and streamed to the client.
+     */
+    static class CachedMetricHandler implements HttpHandler {
+        private final CollectorRegistry registry;
+        private final ScrapeCache cache;
+        private final boolean snapshot;
+        private final boolean streaming;
+
+        CachedMetricHandler(CollectorRegistry registry, ScrapeCache cache, boolean snapshot, boolean streaming) {
+            this.registry = registry;
+            this.cache = cache;
+            this.snapshot = snapshot;
+            this.streaming = streaming && !snapshot;
+        }
+
+        public void handle(HttpExchange httpExchange) throws IOException {
+            final Set<String> names = parseQuery(httpExchange.getRequestURI().getRawQuery());
+            final boolean compress = shouldUseCompression(httpExchange);
+            httpExchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+            if (compress) {
+                httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+
+            if (!names.isEmpty() || streaming) {
+                // a length of 0 selects chunked transfer encoding
+                httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+                final OutputStream out = compress
+                        ? new GZIPOutputStream(httpExchange.getResponseBody(), 8192)
+                        : httpExchange.getResponseBody();
+                if (names.isEmpty()) {
+                    StreamingExposition.write(out, registry.metricFamilySamples());
+                } else {
+                    StreamingExposition.write(out, registry.filteredMetricFamilySamples(names));
+                }
+                out.close();
+                httpExchange.close();
+                return;
+            }
+
+            final MetricsResponse response = MetricsResponse.create(registry, cache, snapshot, names, compress);
+            httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length());
+            httpExchange.getResponseBody().write(response.getBody());
+            httpExchange.getResponseBody().write(response.getTrailer());
+            httpExchange.close();
+        }
+    }
+}
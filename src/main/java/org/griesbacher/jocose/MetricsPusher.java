@@ -0,0 +1,267 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * MetricsPusher sends the metrics of the agent to a Prometheus Pushgateway, for JVMs which end before they are scraped.
+ * Each push replaces the metrics of the grouping key, so a failed push is not repeated, the next one sends the current
+ * state. Only the payload of the running push is held in memory, its size is limited to whole metric families.
+ * The Pushgateway keeps a group until it is deleted, so the group can be deleted some time after the final push.
+ */
+class MetricsPusher implements Runnable {
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    private static final Gauge PUSHES = Gauge.build().name(PROMETHEUS_PREFIX + "push_requests")
+            .help("Amount of pushes to the Pushgateway.").register();
+    private static final Gauge PUSH_FAILURES = Gauge.build().name(PROMETHEUS_PREFIX + "push_failures")
+            .help("Amount of failed pushes to the Pushgateway.").register();
+    private static final Gauge PUSH_SECONDS = Gauge.build().name(PROMETHEUS_PREFIX + "push_seconds")
+            .help("Time in seconds of the last push").register();
+    private static final Gauge PUSH_TRUNCATED = Gauge.build().name(PROMETHEUS_PREFIX + "push_truncated_bytes")
+            .help("Bytes of metric families which did not fit into the last push.").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] FAMILY_START = "# HELP ".getBytes(UTF_8);
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final ScrapeCache cache;
+    private final URL url;
+    private final boolean gzip;
+    private final int maxBytes;
+    private final long deleteAfter;
+    private Scheduler.Task task;
+    private boolean stopped;
+
+    /**
+     * @param cache    the cache of the agent, a push shares the collection with concurrent scrapes
+     * @param url      the url of the grouping key, like http://pushgateway:9091/metrics/job/name
+     * @param gzip     compress the payload, the Pushgateway accepts gzip since version 1.2
+     * @param maxBytes    the maximum size of the uncompressed payload
+     * @param deleteAfter milliseconds after the final push until the group is deleted, 0 keeps the group
+     */
+    MetricsPusher(ScrapeCache cache, URL url, boolean gzip, int maxBytes, long deleteAfter) {
+        this.cache = cache;
+        this.url = url;
+        this.gzip = gzip;
+        this.maxBytes = maxBytes;
+        this.deleteAfter = deleteAfter;
+    }
+
+    /**
+     * Builds the path of a grouping key. Values which the url can not hold are base64 encoded.
+     *
+     * @param job    the job label
+     * @param labels further labels of the grouping key
+     * @return the path, like /metrics/job/name/instance/host
+     */
+    static String groupingPath(String job, Map<String, String> labels) {
+        final StringBuilder path = new StringBuilder("/metrics");
+        appendLabel(path, "job", job);
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            appendLabel(path, label.getKey(), label.getValue());
+        }
+        return path.toString();
+    }
+
+    private static void appendLabel(StringBuilder path, String name, String value) {
+        path.append('/').append(name);
+        if ("".equals(value) || value.indexOf('/') != -1) {
+            path.append("@base64/").append(base64(value.getBytes(UTF_8)));
+            return;
+        }
+        try {
+            path.append('/').append(URLEncoder.encode(value, "UTF-8").replace("+", "%20"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes with the url-safe base64 alphabet, the Pushgateway reads an empty value as "=".
+     */
+    static String base64(byte[] data) {
+        if (data.length == 0) {
+            return "=";
+        }
+        final StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            final int b = (data[i] & 0xff) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xff : 0);
+            out.append(BASE64[(b >> 18) & 0x3f]).append(BASE64[(b >> 12) & 0x3f]);
+            out.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Cuts the exposition after the last metric family which fits into the limit.
+     *
+     * @param body     the exposition in the text format
+     * @param maxBytes the limit
+     * @return the length of the complete families within the limit
+     */
+    static int limit(byte[] body, int maxBytes) {
+        if (body.length <= maxBytes) {
+            return body.length;
+        }
+        for (int end = maxBytes; end > 0; end--) {
+            if (body[end - 1] == '\n' && startsWith(body, end, FAMILY_START)) {
+                return end;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (offset + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schedules the pushes, the first one follows after one interval.
+     *
+     * @param interval milliseconds between two pushes
+     * @param jitter   the ratio of the interval, by which a push may be moved
+     */
+    synchronized void start(long interval, double jitter) {
+        task = Scheduler.schedule(this, interval, interval, jitter);
+    }
+
+    public synchronized void run() {
+        // the final push must not be replaced by an older one
+        if (stopped) {
+            return;
+        }
+        try {
+            push(cache.get().getBody());
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine("Metrics could not be pushed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the periodic pushes and pushes freshly collected metrics, the last state of the JVM.
+     * If configured, the group is deleted after the delay, once the final push has been accepted.
+     */
+    synchronized void stop() {
+        // a running push has finished, so the collection below is not shared with its older one
+        stopped = true;
+        if (task != null) {
+            task.cancel();
+        }
+        try {
+            push(cache.refresh().getBody());
+        } catch (IOException e) {
+            JavaAgent.LOGGER.warning("Final metrics could not be pushed: " + e.getMessage());
+            return;
+        }
+        if (deleteAfter <= 0) {
+            return;
+        }
+        // Prometheus needs the time to scrape the final state
+        try {
+            Thread.sleep(deleteAfter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            send("DELETE", null);
+        } catch (IOException e) {
+            JavaAgent.LOGGER.warning("The push group could not be deleted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the metrics of the grouping key.
+     *
+     * @param body the exposition in the text format
+     * @throws IOException if the Pushgateway did not accept the metrics
+     */
+    synchronized void push(byte[] body) throws IOException {
+        final long start = System.nanoTime();
+        PUSHES.inc();
+        final int length = limit(body, maxBytes);
+        PUSH_TRUNCATED.set(body.length - length);
+        if (length == 0 && body.length > 0) {
+            // an empty push would replace the group with no metrics at all
+            PUSH_FAILURES.inc();
+            PUSH_SECONDS.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+            throw new IOException(String.format("The first metric family exceeds pushMaxBytes of %d", maxBytes));
+        }
+        byte[] payload = body;
+        if (length < body.length) {
+            payload = new byte[length];
+            System.arraycopy(body, 0, payload, 0, length);
+        }
+        if (gzip) {
+            payload = ScrapeResult.gzip(payload);
+        }
+        try {
+            send("PUT", payload);
+        } catch (IOException e) {
+            PUSH_FAILURES.inc();
+            throw e;
+        } finally {
+            PUSH_SECONDS.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Sends a request for the grouping key.
+     *
+     * @param method  the http method
+     * @param payload the body, null for none
+     * @throws IOException if the Pushgateway did not accept the request
+     */
+    private void send(String method, byte[] payload) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(RemoteConfigCache.CONNECT_TIMEOUT);
+        connection.setReadTimeout(RemoteConfigCache.READ_TIMEOUT);
+        connection.setRequestMethod(method);
+        if (payload != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", TextFormat.CONTENT_TYPE_004);
+            if (gzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            connection.setFixedLengthStreamingMode(payload.length);
+            final OutputStream out = connection.getOutputStream();
+            out.write(payload);
+            out.close();
+        }
+        final int status = connection.getResponseCode();
+        // the connection can only be reused if the response is read completely
+        final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+            in.close();
+        }
+        if (status / 100 != 2) {
+            throw new IOException(String.format("The Pushgateway answered %d to %s %s", status, method, url));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * MetricsResponse is the body of a scrape which has been collected before it is sent.
+ * It consists of the collected metrics and, for snapshots, a trailer with the age of the snapshot.
+ */
+class MetricsResponse {
+    private static final byte[] EMPTY = new byte[0];
+    private final byte[] body;
+    private final byte[] trailer;
+
+    private MetricsResponse(byte[] body, byte[] trailer) {
+        this.body = body;
+        this.trailer = trailer;
+    }
+
+    /**
+     * Creates the response of a scrape.
+     *
+     * @param registry the registry to collect filtered scrapes from
+     * @param cache    the cache to serve unfiltered scrapes from
+     * @param snapshot if the cache is refreshed in the background, the age of the served result will be appended
+     * @param names    the metric families selected by name[], empty for all
+     * @param compress if the response should be gzip compressed
+     * @return the response
+     * @throws IOException if the collection failed
+     */
+    static MetricsResponse create(
+            CollectorRegistry registry, ScrapeCache cache, boolean snapshot, Set<String> names, boolean compress
+    ) throws IOException {
+        if (!names.isEmpty()) {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final OutputStreamWriter writer = new OutputStreamWriter(buffer);
+            TextFormat.write004(writer, registry.filteredMetricFamilySamples(names));
+            writer.close();
+            return new MetricsResponse(compress ? ScrapeResult.gzip(buffer.toByteArray()) : buffer.toByteArray(), EMPTY);
+        }
+
+        final ScrapeResult result = cache.get();
+        final byte[] body = compress ? result.getGzipBody() : result.getBody();
+        byte[] trailer = EMPTY;
+        if (snapshot) {
+            trailer = snapshotAge(result);
+            if (compress) {
+                // concatenated gzip members are decompressed as one stream
+                trailer = ScrapeResult.gzip(trailer);
+            }
+        }
+        return new MetricsResponse(body, trailer);
+    }
+
+    /**
+     * The snapshot age has to be computed on every scrape, so it is appended to the immutable snapshot.
+     */
+    private static byte[] snapshotAge(ScrapeResult result) {
+        return String.format(Locale.US,
+                "# HELP %1$ssnapshot_age_seconds Age in seconds of the served metric snapshot.\n" +
+                        "# TYPE %1$ssnapshot_age_seconds gauge\n" +
+                        "%1$ssnapshot_age_seconds %2$f\n",
+                JavaAgent.PROMETHEUS_PREFIX,
+                JavaAgent.nanoSecondsToSeconds(System.nanoTime() - result.getCreatedNanos())
+        ).getBytes();
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    byte[] getTrailer() {
+        return trailer;
+    }
+
+    int length() {
+        return body.length + trailer.length;
+    }
+}
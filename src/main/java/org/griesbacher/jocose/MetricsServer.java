@@ -0,0 +1,23 @@
+package org.griesbacher.jocose;
+
+/**
+ * MetricsServer is the web server which exports the metrics and answers the consul health check.
+ */
+interface MetricsServer {
+    /**
+     * Answers requests to /uuid with the uuid, this is used by the consul health check.
+     *
+     * @param uuid the id of the consul service
+     */
+    void addUUIDContext(String uuid);
+
+    /**
+     * Stops the server.
+     */
+    void stop();
+
+    /**
+     * @return the port the server is listening on
+     */
+    int getPort();
+}
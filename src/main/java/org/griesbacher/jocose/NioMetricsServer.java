@@ -0,0 +1,391 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * NioMetricsServer is a minimal HTTP/1.1 server, which handles all connections with one non-blocking selector thread.
+ * It answers GET and HEAD requests and keeps connections alive, other features of HTTP are not supported.
+ * Snapshots of the background collection (collectionInterval) are answered on the selector thread. Scrapes which
+ * have to collect are handed to a worker thread, so health checks and other connections do not wait for them.
+ */
+class NioMetricsServer implements MetricsServer {
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final CollectorRegistry registry;
+    private final ScrapeCache cache;
+    private final boolean snapshot;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Set<String> uuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // responses of the worker, they are written by the selector thread
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<Runnable>();
+    private final ExecutorService worker;
+    private final Thread thread;
+
+    /**
+     * Binds the address and starts the selector thread.
+     *
+     * @param addr     the address to listen on
+     * @param registry the registry to export
+     * @param cache    the cache to serve unfiltered scrapes from
+     * @param exporter the exporter section of the configuration
+     * @throws IOException if the address could not be bound
+     */
+    NioMetricsServer(InetSocketAddress addr, CollectorRegistry registry, ScrapeCache cache, Config.Exporter exporter)
+            throws IOException {
+        this.registry = registry;
+        this.cache = cache;
+        this.snapshot = exporter.collectionInterval > 0;
+        if (exporter.streaming) {
+            JavaAgent.LOGGER.warning("The nio web server does not stream, the streaming option is ignored");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(addr);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        worker = Executors.newSingleThreadExecutor(new ServerExecutors.NamedThreadFactory("jocose-nio-worker-", true));
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "jocose-nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void addUUIDContext(String uuid) {
+        uuids.add(uuid);
+    }
+
+    public void stop() {
+        thread.interrupt();
+        worker.shutdownNow();
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void loop() {
+        long lastIdleCheck = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select(1000);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastIdleCheck > 1000) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                JavaAgent.LOGGER.fine(e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                final SocketChannel channel = serverChannel.accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection());
+                }
+                return;
+            }
+            final Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+                read(key, connection);
+            } else if (key.isWritable()) {
+                write(key, connection);
+            }
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+            close(key);
+        }
+    }
+
+    private void read(SelectionKey key, Connection connection) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.in) == -1) {
+            close(key);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        process(key, connection);
+    }
+
+    /**
+     * Answers the next complete request in the input buffer, if there is one.
+     */
+    private void process(final SelectionKey key, final Connection connection) throws IOException {
+        final int end = headerEnd(connection.in);
+        if (end == -1) {
+            if (!connection.in.hasRemaining()) {
+                respond(key, connection, "431 Request Header Fields Too Large", "text/plain", null,
+                        new byte[0], new byte[0], false, false);
+            }
+            return;
+        }
+
+        final byte[] header = new byte[end];
+        connection.in.flip();
+        connection.in.get(header);
+        connection.in.compact();
+        final Request request = Request.parse(new String(header, ASCII));
+        if (request == null) {
+            respond(key, connection, "400 Bad Request", "text/plain", null, new byte[0], new byte[0], false, false);
+            return;
+        }
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            respond(key, connection, "405 Method Not Allowed", "text/plain", null, new byte[0], new byte[0], false, false);
+            return;
+        }
+
+        final boolean head = "HEAD".equals(request.method);
+        final String uuid = request.path.length() > 1 ? request.path.substring(1) : "";
+        if (uuids.contains(uuid)) {
+            respond(key, connection, "200 OK", "text/plain", null, uuid.getBytes(), new byte[0], request.keepAlive, head);
+            return;
+        }
+
+        final Set<String> names = MetricsHTTPServer.parseQuery(request.query);
+        // before the first background collection finished, the selector thread would collect or wait itself
+        if (snapshot && names.isEmpty() && cache.peek() != null) {
+            respondMetrics(key, connection, request, MetricsResponse.create(registry, cache, true, names, request.gzip));
+            return;
+        }
+        // no further request of this connection is read until the collection is answered
+        key.interestOps(0);
+        worker.execute(new Runnable() {
+            public void run() {
+                MetricsResponse response = null;
+                try {
+                    response = MetricsResponse.create(registry, cache, snapshot, names, request.gzip);
+                } catch (IOException e) {
+                    JavaAgent.LOGGER.fine(e.getMessage());
+                } catch (RuntimeException e) {
+                    JavaAgent.LOGGER.warning("The collection failed: " + e);
+                }
+                final MetricsResponse collected = response;
+                completions.add(new Runnable() {
+                    public void run() {
+                        if (!key.isValid()) {
+                            return;
+                        }
+                        try {
+                            if (collected == null) {
+                                respond(key, connection, "500 Internal Server Error", "text/plain", null,
+                                        new byte[0], new byte[0], false, false);
+                            } else {
+                                respondMetrics(key, connection, request, collected);
+                            }
+                        } catch (IOException e) {
+                            JavaAgent.LOGGER.fine(e.getMessage());
+                            close(key);
+                        }
+                    }
+                });
+                selector.wakeup();
+            }
+        });
+    }
+
+    private void respondMetrics(SelectionKey key, Connection connection, Request request, MetricsResponse response)
+            throws IOException {
+        respond(key, connection, "200 OK", TextFormat.CONTENT_TYPE_004, request.gzip ? "gzip" : null,
+                response.getBody(), response.getTrailer(), request.keepAlive, "HEAD".equals(request.method));
+    }
+
+    private void respond(
+            SelectionKey key, Connection connection, String status, String contentType, String contentEncoding,
+            byte[] body, byte[] trailer, boolean keepAlive, boolean head
+    ) throws IOException {
+        final StringBuilder header = new StringBuilder(160)
+                .append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(body.length + trailer.length).append("\r\n")
+                .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        if (contentEncoding != null) {
+            header.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        }
+        header.append("\r\n");
+
+        if (head) {
+            connection.out = new ByteBuffer[]{ByteBuffer.wrap(header.toString().getBytes(ASCII))};
+        } else {
+            connection.out = new ByteBuffer[]{
+                    ByteBuffer.wrap(header.toString().getBytes(ASCII)), ByteBuffer.wrap(body), ByteBuffer.wrap(trailer)
+            };
+        }
+        connection.keepAlive = keepAlive;
+        write(key, connection);
+    }
+
+    private void write(SelectionKey key, Connection connection) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(connection.out);
+        connection.lastActivity = System.currentTimeMillis();
+        for (ByteBuffer buffer : connection.out) {
+            if (buffer.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        connection.out = null;
+        if (!connection.keepAlive) {
+            close(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // a pipelined request may already be waiting in the buffer
+        if (connection.in.position() > 0) {
+            process(key, connection);
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection
+                    && now - ((Connection) key.attachment()).lastActivity > IDLE_TIMEOUT) {
+                close(key);
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+    }
+
+    /**
+     * Searches the end of the request header.
+     *
+     * @return the length of the header including the empty line, -1 if it is not complete
+     */
+    private static int headerEnd(ByteBuffer in) {
+        for (int i = 3; i < in.position(); i++) {
+            if (in.get(i - 3) == '\r' && in.get(i - 2) == '\n' && in.get(i - 1) == '\r' && in.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Connection holds the state of one client connection.
+     */
+    private static class Connection {
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        ByteBuffer[] out;
+        boolean keepAlive;
+        long lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Request is the parsed header of a request.
+     */
+    static class Request {
+        String method;
+        String path;
+        String query;
+        boolean keepAlive;
+        boolean gzip;
+
+        static Request parse(String header) {
+            final String[] lines = header.split("\r\n");
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                return null;
+            }
+            final Request request = new Request();
+            request.method = requestLine[0];
+            final int queryStart = requestLine[1].indexOf('?');
+            if (queryStart == -1) {
+                request.path = requestLine[1];
+            } else {
+                request.path = requestLine[1].substring(0, queryStart);
+                request.query = requestLine[1].substring(queryStart + 1);
+            }
+            // HTTP/1.1 keeps the connection alive by default, HTTP/1.0 only if requested
+            request.keepAlive = "HTTP/1.1".equals(requestLine[2]);
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                final String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.US);
+                if ("connection".equals(name)) {
+                    if (value.contains("close")) {
+                        request.keepAlive = false;
+                    } else if (value.contains("keep-alive")) {
+                        request.keepAlive = true;
+                    }
+                } else if ("accept-encoding".equals(name)) {
+                    for (String encoding : value.split(",")) {
+                        if ("gzip".equals(encoding.trim())) {
+                            request.gzip = true;
+                        }
+                    }
+                }
+            }
+            return request;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Gauge;
+import io.prometheus.jmx.JmxCollector;
+import org.yaml.snakeyaml.Yaml;
+
+import javax.management.MalformedObjectNameException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * PartitionedJmxCollector splits the MBeans into partitions and collects them in parallel.
+ * Each partition is scraped by its own JmxCollector, which uses the same rules but only whitelists its partition.
+ * The partitions are the whitelistObjectNames of the configuration, or the MBean domains if no whitelist is given.
+ * The results are merged in the order of the partition names, so the output does not depend on the scheduling.
+ */
+class PartitionedJmxCollector extends Collector implements Collector.Describable {
+    private static final Gauge PARTITION_DURATION = Gauge.build().name(PROMETHEUS_PREFIX + "jmx_partition_scrape_duration_seconds")
+            .help("Duration in seconds to scrape the MBeans of one partition.").labelNames("partition").register();
+    private static final String WHITELIST = "whitelistObjectNames";
+    private static final String SCRAPE_DURATION = "jmx_scrape_duration_seconds";
+    private static final String SCRAPE_ERROR = "jmx_scrape_error";
+
+    private final Map<String, Object> yamlConfig;
+    private final List<String> whitelist;
+    private final boolean remote;
+    private final ForkJoinPool pool;
+    private final Map<String, JmxCollector> collectors = new HashMap<String, JmxCollector>();
+
+    /**
+     * Creates a new collector.
+     *
+     * @param configString the jmx_exporter configuration
+     * @param parallelism  the maximal amount of partitions which will be scraped at the same time
+     * @throws MalformedObjectNameException if the configuration contains invalid object names
+     */
+    @SuppressWarnings("unchecked")
+    PartitionedJmxCollector(String configString, int parallelism) throws MalformedObjectNameException {
+        Object yamlObj = new Yaml().load(configString);
+        if (yamlObj instanceof Map) {
+            yamlConfig = (Map<String, Object>) yamlObj;
+        } else {
+            yamlConfig = new HashMap<String, Object>();
+        }
+        if (yamlConfig.get(WHITELIST) instanceof List) {
+            whitelist = new ArrayList<String>();
+            for (Object objectName : (List) yamlConfig.get(WHITELIST)) {
+                whitelist.add(String.valueOf(objectName));
+            }
+        } else {
+            whitelist = Collections.emptyList();
+        }
+        // The domains of a remote JVM are not known, so it will be scraped as one partition
+        remote = yamlConfig.containsKey("hostPort") || yamlConfig.containsKey("jmxUrl");
+        pool = new ForkJoinPool(parallelism);
+        // Fail early, like the JmxCollector would
+        new JmxCollector(configString);
+    }
+
+    private List<String> partitions() {
+        final TreeSet<String> partitions = new TreeSet<String>();
+        if (remote) {
+            partitions.add("");
+        } else if (!whitelist.isEmpty()) {
+            partitions.addAll(whitelist);
+        } else {
+            for (String domain : ManagementFactory.getPlatformMBeanServer().getDomains()) {
+                partitions.add(domain + ":*");
+            }
+        }
+        return new ArrayList<String>(partitions);
+    }
+
+    private synchronized JmxCollector collectorFor(String partition) throws MalformedObjectNameException {
+        JmxCollector collector = collectors.get(partition);
+        if (collector == null) {
+            final Map<String, Object> partitionConfig = new HashMap<String, Object>(yamlConfig);
+            if (!"".equals(partition)) {
+                partitionConfig.put(WHITELIST, Collections.singletonList(partition));
+            }
+            collector = new JmxCollector(new Yaml().dump(partitionConfig));
+            collectors.put(partition, collector);
+        }
+        return collector;
+    }
+
+    private synchronized void removeVanished(List<String> partitions) {
+        for (String partition : new ArrayList<String>(collectors.keySet())) {
+            if (!partitions.contains(partition)) {
+                collectors.remove(partition);
+                PARTITION_DURATION.remove(partition);
+            }
+        }
+    }
+
+    public List<MetricFamilySamples> collect() {
+        final long start = System.nanoTime();
+        final List<String> partitions = partitions();
+        removeVanished(partitions);
+
+        final List<Callable<List<MetricFamilySamples>>> tasks = new ArrayList<Callable<List<MetricFamilySamples>>>();
+        for (final String partition : partitions) {
+            tasks.add(new Callable<List<MetricFamilySamples>>() {
+                public List<MetricFamilySamples> call() throws Exception {
+                    final long partitionStart = System.nanoTime();
+                    final List<MetricFamilySamples> samples;
+                    // the partitions are collected by the threads of the pool
+                    CachingMBeanServer.beginBulkReads();
+                    try {
+                        samples = collectorFor(partition).collect();
+                    } finally {
+                        CachingMBeanServer.endBulkReads();
+                    }
+                    PARTITION_DURATION.labels(partition).set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - partitionStart));
+                    return samples;
+                }
+            });
+        }
+
+        final List<List<MetricFamilySamples>> results = new ArrayList<List<MetricFamilySamples>>();
+        for (Future<List<MetricFamilySamples>> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while collecting JMX partitions");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("JMX partition could not be collected", e.getCause());
+            }
+        }
+        return merge(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Merges the families of all partitions. Samples which occur in multiple partitions are taken from the first one,
+     * the scrape duration is replaced by the duration of the whole collection and the scrape error is the maximum.
+     *
+     * @param results  the collected families, in partition order
+     * @param duration the duration of the whole collection in nanoseconds
+     * @return the merged families
+     */
+    static List<MetricFamilySamples> merge(List<List<MetricFamilySamples>> results, long duration) {
+        final Map<String, MetricFamilySamples> families = new LinkedHashMap<String, MetricFamilySamples>();
+        final Map<String, Map<List<String>, MetricFamilySamples.Sample>> samples =
+                new HashMap<String, Map<List<String>, MetricFamilySamples.Sample>>();
+        double error = 0;
+
+        for (List<MetricFamilySamples> result : results) {
+            for (MetricFamilySamples family : result) {
+                if (SCRAPE_DURATION.equals(family.name)) {
+                    continue;
+                }
+                if (SCRAPE_ERROR.equals(family.name)) {
+                    for (MetricFamilySamples.Sample sample : family.samples) {
+                        error = Math.max(error, sample.value);
+                    }
+                    continue;
+                }
+                if (!families.containsKey(family.name)) {
+                    families.put(family.name, family);
+                    samples.put(family.name, new LinkedHashMap<List<String>, MetricFamilySamples.Sample>());
+                }
+                final Map<List<String>, MetricFamilySamples.Sample> familySamples = samples.get(family.name);
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    final List<String> key = new ArrayList<String>(sample.labelValues.size() * 2 + 1);
+                    key.add(sample.name);
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        key.add(sample.labelNames.get(i));
+                        key.add(sample.labelValues.get(i));
+                    }
+                    if (!familySamples.containsKey(key)) {
+                        familySamples.put(key, sample);
+                    }
+                }
+            }
+        }
+
+        final List<MetricFamilySamples> merged = new ArrayList<MetricFamilySamples>(families.size() + 2);
+        for (MetricFamilySamples family : families.values()) {
+            merged.add(new MetricFamilySamples(family.name, family.type, family.help,
+                    new ArrayList<MetricFamilySamples.Sample>(samples.get(family.name).values())));
+        }
+        merged.add(scrapeFamily(SCRAPE_DURATION, "Time this JMX scrape took, in seconds.", duration / 1.0E9));
+        merged.add(scrapeFamily(SCRAPE_ERROR, "Non-zero if this scrape failed.", error));
+        return merged;
+    }
+
+    private static MetricFamilySamples scrapeFamily(String name, String help, double value) {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(name, new ArrayList<String>(), new ArrayList<String>(), value));
+        return new MetricFamilySamples(name, Type.GAUGE, help, samples);
+    }
+
+    /**
+     * Stops the threads of the partitions, the collector can not be used afterwards.
+     */
+    void close() {
+        pool.shutdown();
+    }
+
+    public List<MetricFamilySamples> describe() {
+        final List<MetricFamilySamples> families = new ArrayList<MetricFamilySamples>();
+        families.add(new MetricFamilySamples(SCRAPE_DURATION, Type.GAUGE, "Time this JMX scrape took, in seconds.",
+                new ArrayList<MetricFamilySamples.Sample>()));
+        families.add(new MetricFamilySamples(SCRAPE_ERROR, Type.GAUGE, "Non-zero if this scrape failed.",
+                new ArrayList<MetricFamilySamples.Sample>()));
+        return families;
+    }
+}
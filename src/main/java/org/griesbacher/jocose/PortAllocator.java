@@ -0,0 +1,262 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * PortAllocator finds a free port within the port range for agents which share a host.
+ * Each agent starts searching at an offset derived from its lease id and container, so concurrent agents try different
+ * ports. The claimed ports are recorded in a lease file, which is locked while a port is chosen, so agents skip the
+ * ports of their neighbours instead of failing to bind them.
+ * A lease is kept alive by a lock on the byte of its port beyond the leases, which the agent holds while it runs.
+ * The operating system drops the lock when the process dies, so a lease whose byte can be locked is stale.
+ */
+class PortAllocator {
+    static final String DEFAULT_LEASE_FILE = new File(System.getProperty("java.io.tmpdir"), "jocose-ports.lease").getPath();
+    private static final Gauge PORT_ALLOCATION = Gauge.build().name(PROMETHEUS_PREFIX + "port_allocation_seconds")
+            .help("Time in seconds to find a free port").register();
+    private static final Gauge PORT_ALLOCATION_ATTEMPTS = Gauge.build().name(PROMETHEUS_PREFIX + "port_allocation_attempts")
+            .help("Amount of ports which have been tried to bind").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // FileLocks are held by the JVM, so threads of the same JVM have to be excluded separately
+    private static final Object JVM_LOCK = new Object();
+    // the region locked while the leases are changed, the lease locks start behind it
+    private static final long LEASES_LOCK = 0;
+    private static final long PORT_LOCKS = 1L << 32;
+    // closing a channel may drop every lock of the JVM on the file, so each lease file stays open
+    private static final Map<String, FileChannel> CHANNELS = new HashMap<String, FileChannel>();
+
+    private final File leaseFile;
+    private final int startPort;
+    private final int endPort;
+    private final String owner;
+    private final Map<Integer, FileLock> portLocks = new HashMap<Integer, FileLock>();
+
+    /**
+     * Binder tries to start the server on a port.
+     */
+    interface Binder {
+        /**
+         * @param port the port to bind
+         * @return true if the port could be bound
+         */
+        boolean bind(int port);
+    }
+
+    /**
+     * Creates an allocator for the range from startPort to endPort, excluding the end.
+     *
+     * @param leaseFile the file which records the claimed ports of this host
+     * @param startPort the first port of the range
+     * @param endPort   the end of the range
+     */
+    PortAllocator(String leaseFile, int startPort, int endPort) {
+        this(leaseFile, startPort, endPort, UUID.randomUUID().toString());
+    }
+
+    PortAllocator(String leaseFile, int startPort, int endPort, String owner) {
+        this.leaseFile = new File(leaseFile);
+        this.startPort = startPort;
+        this.endPort = endPort;
+        this.owner = owner;
+    }
+
+    /**
+     * Binds a port of the range. Ports leased by running agents are only tried if all others failed.
+     *
+     * @param binder starts the server
+     * @return the bound port, -1 if no port could be bound
+     */
+    int allocate(Binder binder) {
+        final long start = System.nanoTime();
+        int port = -1;
+        boolean allocated = false;
+        synchronized (JVM_LOCK) {
+            try {
+                final FileChannel channel = channel();
+                final FileLock lock = channel.lock(LEASES_LOCK, 1, false);
+                try {
+                    final Map<Integer, String> leases = readLeases(channel);
+                    port = allocate(binder, leases);
+                    allocated = true;
+                    if (port != -1) {
+                        holdLease(channel, port);
+                        leases.put(port, owner);
+                        writeLeases(channel, leases);
+                    }
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                JavaAgent.LOGGER.fine("Port lease file not usable: " + e.getMessage());
+                if (!allocated) {
+                    // without a lease file the offset still spreads the agents
+                    port = allocate(binder, new LinkedHashMap<Integer, String>());
+                }
+            }
+        }
+        PORT_ALLOCATION.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        return port;
+    }
+
+    private int allocate(Binder binder, Map<Integer, String> leases) {
+        final int size = endPort - startPort;
+        if (size <= 0) {
+            return -1;
+        }
+        final int offset = offset(size);
+        int attempts = 0;
+        // first the free ports, then the leased ones, a lease might not have been released
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < size; i++) {
+                final int port = startPort + (offset + i) % size;
+                if (leases.containsKey(port) == (round == 0)) {
+                    continue;
+                }
+                attempts++;
+                PORT_ALLOCATION_ATTEMPTS.set(attempts);
+                if (binder.bind(port)) {
+                    return port;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the lease of this allocator for the port.
+     *
+     * @param port the port which is not used anymore
+     */
+    void release(int port) {
+        synchronized (JVM_LOCK) {
+            try {
+                final FileChannel channel = channel();
+                final FileLock lock = channel.lock(LEASES_LOCK, 1, false);
+                try {
+                    final Map<Integer, String> leases = readLeases(channel);
+                    if (owner.equals(leases.get(port))) {
+                        leases.remove(port);
+                        writeLeases(channel, leases);
+                    }
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                JavaAgent.LOGGER.fine("Port lease could not be released: " + e.getMessage());
+            }
+            final FileLock portLock = portLocks.remove(port);
+            if (portLock != null) {
+                releaseQuietly(portLock);
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        final String path = leaseFile.getCanonicalPath();
+        FileChannel channel = CHANNELS.get(path);
+        if (channel == null) {
+            channel = new RandomAccessFile(path, "rw").getChannel();
+            CHANNELS.put(path, channel);
+        }
+        return channel;
+    }
+
+    private void holdLease(FileChannel channel, int port) throws IOException {
+        final FileLock stale = portLocks.remove(port);
+        if (stale != null) {
+            releaseQuietly(stale);
+        }
+        portLocks.put(port, channel.lock(PORT_LOCKS + port, 1, false));
+    }
+
+    /**
+     * The offset is a hash of the random owner id and the YARN container, so agents started at the same time start
+     * apart.
+     *
+     * @param size the size of the port range
+     * @return the offset within the range
+     */
+    int offset(int size) {
+        final String containerID = System.getenv("CONTAINER_ID");
+        final String key = containerID == null ? owner : owner + ":" + containerID;
+        // spread the bits, hashCode of similar strings differs only slightly
+        int hash = key.hashCode() * 0x9e3779b9;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % size;
+    }
+
+    private Map<Integer, String> readLeases(FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        final Map<Integer, String> leases = new LinkedHashMap<Integer, String>();
+        for (String line : new String(buffer.array(), UTF_8).split("\n")) {
+            final String[] portOwner = line.trim().split(" ");
+            if (portOwner.length != 2) {
+                continue;
+            }
+            try {
+                leases.put(Integer.parseInt(portOwner[0]), portOwner[1]);
+            } catch (NumberFormatException e) {
+                JavaAgent.LOGGER.fine("Invalid port lease: " + line);
+            }
+        }
+        final Iterator<Map.Entry<Integer, String>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (!isHeld(channel, iterator.next().getKey())) {
+                iterator.remove();
+            }
+        }
+        return leases;
+    }
+
+    private void writeLeases(FileChannel channel, Map<Integer, String> leases) throws IOException {
+        final StringBuilder content = new StringBuilder();
+        for (Map.Entry<Integer, String> lease : leases.entrySet()) {
+            content.append(lease.getKey()).append(' ').append(lease.getValue()).append('\n');
+        }
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(content.toString().getBytes(UTF_8)), 0);
+        channel.force(false);
+    }
+
+    /**
+     * Tests if an agent still holds the lock of a lease, the locks of this JVM can not be tested and count as held.
+     */
+    private static boolean isHeld(FileChannel channel, int port) throws IOException {
+        final FileLock lock;
+        try {
+            lock = channel.tryLock(PORT_LOCKS + port, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+        if (lock == null) {
+            return true;
+        }
+        releaseQuietly(lock);
+        return false;
+    }
+
+    private static void releaseQuietly(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+    }
+}
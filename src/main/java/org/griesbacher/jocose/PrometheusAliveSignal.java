@@ -1,32 +1,24 @@
 package org.griesbacher.jocose;
 
-import io.prometheus.client.Gauge;
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.util.Collections;
+import java.util.List;
 
 import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
 
 /**
  * PrometheusAliveSignal is used to export the last timestamp the exporter was public.
+ * The timestamp is taken when the metrics are collected, so no thread has to update it.
  */
-public class PrometheusAliveSignal extends Thread {
-    private static final Gauge LAST_ALIVE_SIGNAL = Gauge.build().name(PROMETHEUS_PREFIX + "last_alive")
-            .help("Timestamp in seconds, with the last seen timestamp.").register();
-
-    /**
-     * Creates a thread to export the last timestamp of the last scrape.
-     */
-    public PrometheusAliveSignal() {
-        this.setDaemon(true);
-    }
+public class PrometheusAliveSignal extends Collector {
+    private static final String NAME = PROMETHEUS_PREFIX + "last_alive";
+    private static final String HELP = "Timestamp in seconds, with the last seen timestamp.";
 
-    @Override
-    public void run() {
-        while (true) {
-            LAST_ALIVE_SIGNAL.set(System.currentTimeMillis() / 1000.0);
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                return;
-            }
-        }
+    public List<MetricFamilySamples> collect() {
+        return Collections.<MetricFamilySamples>singletonList(
+                new GaugeMetricFamily(NAME, HELP, System.currentTimeMillis() / 1000.0)
+        );
     }
 }
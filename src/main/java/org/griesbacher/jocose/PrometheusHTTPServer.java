@@ -9,9 +9,20 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 
-public class PrometheusHTTPServer extends HTTPServer {
+/**
+ * PrometheusHTTPServer is the prometheus HTTPServer with the scrape handler and the health check of the agent.
+ * It keeps the fixed executor of its superclass, the agent itself uses the configurable MetricsHTTPServer.
+ */
+public class PrometheusHTTPServer extends HTTPServer implements MetricsServer {
     public PrometheusHTTPServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon) throws IOException {
         super(addr, registry, daemon);
+        final HttpHandler handler = new MetricsHTTPServer.CachedMetricHandler(
+                registry, new ScrapeCache(registry, 0), false, false
+        );
+        this.server.removeContext("/");
+        this.server.removeContext("/metrics");
+        this.server.createContext("/", handler);
+        this.server.createContext("/metrics", handler);
     }
 
     public void addUUIDContext(final String uuid) {
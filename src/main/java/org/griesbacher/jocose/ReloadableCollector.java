@@ -0,0 +1,62 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector;
+
+import java.util.List;
+
+/**
+ * ReloadableCollector stays registered in the CollectorRegistry and delegates to the collector of the current config.
+ * A reload swaps the delegate at once, so no scrape sees a registry without the jmx metrics or with both collectors.
+ */
+class ReloadableCollector extends Collector implements Collector.Describable {
+    // a scrape may still use the old collector for a while
+    static final long CLOSE_DELAY = 60 * 1000;
+
+    private volatile Collector delegate;
+
+    ReloadableCollector(Collector delegate) {
+        this.delegate = delegate;
+    }
+
+    public List<MetricFamilySamples> collect() {
+        CachingMBeanServer.beginBulkReads();
+        try {
+            return delegate.collect();
+        } finally {
+            CachingMBeanServer.endBulkReads();
+        }
+    }
+
+    /**
+     * The registry checks the names of a collector on its registration, the delegate describes them without a scrape.
+     */
+    public List<MetricFamilySamples> describe() {
+        final Collector current = delegate;
+        if (current instanceof Describable) {
+            return ((Describable) current).describe();
+        }
+        // the registry collects collectors which can not describe themselves
+        return current.collect();
+    }
+
+    /**
+     * Replaces the delegate, the old one is closed after the running scrapes are done.
+     *
+     * @param newDelegate the collector of the new config
+     */
+    void swap(Collector newDelegate) {
+        final Collector old = delegate;
+        delegate = newDelegate;
+        if (old instanceof PartitionedJmxCollector) {
+            Scheduler.once(new Runnable() {
+                public void run() {
+                    ((PartitionedJmxCollector) old).close();
+                }
+            }, CLOSE_DELAY);
+        }
+    }
+
+    Collector getDelegate() {
+        return delegate;
+    }
+}
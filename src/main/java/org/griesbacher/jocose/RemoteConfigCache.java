@@ -0,0 +1,369 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * RemoteConfigCache downloads the config from a http(s) url and keeps a copy on the disk, so agents started at the
+ * same time do not all download the same file.
+ * A copy younger than the max age is used without a request. An older copy is revalidated with a conditional request,
+ * within the stale window it is used immediately and revalidated in the background. If the server is not reachable,
+ * the copy is used regardless of its age.
+ * The directory belongs to one user and only its owner may access it, so another user of the host can not plant a
+ * config. Directories and files of someone else are not used.
+ */
+class RemoteConfigCache {
+    static final File DEFAULT_DIRECTORY = new File(System.getProperty("java.io.tmpdir"),
+            "jocose-config-cache-" + System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_"));
+    static final int CONNECT_TIMEOUT = 5000;
+    static final int READ_TIMEOUT = 10000;
+    static final int CACHED = 0;
+    static final int REVALIDATED = 1;
+    static final int DOWNLOADED = 2;
+    static final int STALE = 3;
+    private static final Gauge CONFIG_FETCH = Gauge.build().name(PROMETHEUS_PREFIX + "config_fetch_seconds")
+            .help("Time in seconds to fetch the remote config").register();
+    private static final Gauge CONFIG_SOURCE = Gauge.build().name(PROMETHEUS_PREFIX + "config_source")
+            .help("Source of the remote config: 0 cache, 1 revalidated cache, 2 download, 3 stale cache").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String FETCHED = "fetched";
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+    private static UserPrincipal currentUser;
+
+    private final File directory;
+    private final long maxAge;
+    private final long staleWhileRevalidate;
+    private volatile int lastSource = -1;
+
+    /**
+     * @param directory            the directory of the cached copies
+     * @param maxAge               milliseconds a copy is used without asking the server
+     * @param staleWhileRevalidate milliseconds after the max age, in which a copy is used while it is revalidated
+     */
+    RemoteConfigCache(File directory, long maxAge, long staleWhileRevalidate) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Returns the config of the url, from the cache if possible.
+     *
+     * @param url the http or https url of the config
+     * @return the content of the config
+     * @throws IOException if the config could neither be downloaded nor found in the cache
+     */
+    String fetch(final String url) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            final Entry cached = read(url);
+            if (cached != null) {
+                final long age = System.currentTimeMillis() - cached.fetched;
+                if (age >= 0 && age < maxAge) {
+                    return setSource(CACHED, cached.content);
+                }
+                if (age >= 0 && age < maxAge + staleWhileRevalidate) {
+                    Scheduler.once(new Runnable() {
+                        public void run() {
+                            try {
+                                revalidate(url, cached);
+                            } catch (IOException e) {
+                                JavaAgent.LOGGER.warning("Config could not be revalidated: " + e.getMessage());
+                            }
+                        }
+                    }, 0);
+                    return setSource(STALE, cached.content);
+                }
+            }
+            try {
+                return revalidate(url, cached);
+            } catch (IOException e) {
+                if (cached == null) {
+                    throw e;
+                }
+                JavaAgent.LOGGER.warning("Config server not reachable, using the cached config: " + e.getMessage());
+                return setSource(STALE, cached.content);
+            }
+        } finally {
+            CONFIG_FETCH.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @return the source of the last fetched config, see the constants
+     */
+    int getLastSource() {
+        return lastSource;
+    }
+
+    private String setSource(int source, String content) {
+        lastSource = source;
+        CONFIG_SOURCE.set(source);
+        return content;
+    }
+
+    /**
+     * Asks the server for the config, a cached copy is sent along as ETag or modification date.
+     */
+    private String revalidate(String url, Entry cached) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setUseCaches(false);
+            if (cached != null) {
+                if (cached.etag != null) {
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                cached.fetched = System.currentTimeMillis();
+                write(url, cached);
+                return setSource(REVALIDATED, cached.content);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException(String.format("Config server answered %d for %s", status, url));
+            }
+            final Entry entry = new Entry();
+            entry.content = new String(readFully(connection.getInputStream()), UTF_8);
+            entry.etag = connection.getHeaderField("ETag");
+            entry.lastModified = connection.getHeaderField("Last-Modified");
+            entry.fetched = System.currentTimeMillis();
+            write(url, entry);
+            return setSource(DOWNLOADED, entry.content);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Entry read(String url) {
+        final File metaFile = file(url, ".properties");
+        final File contentFile = file(url, ".yml");
+        if (!metaFile.isFile() || !contentFile.isFile() || !isPrivate(false)) {
+            return null;
+        }
+        try {
+            if (!isOwned(metaFile.toPath()) || !isOwned(contentFile.toPath())) {
+                JavaAgent.LOGGER.warning("The cached config of " + url + " belongs to another user and is not used");
+                return null;
+            }
+            final Properties meta = new Properties();
+            final InputStream metaIn = new FileInputStream(metaFile);
+            try {
+                meta.load(metaIn);
+            } finally {
+                metaIn.close();
+            }
+            // the hash of the name might collide
+            if (!url.equals(meta.getProperty("url"))) {
+                return null;
+            }
+            final Entry entry = new Entry();
+            entry.etag = meta.getProperty(ETAG);
+            entry.lastModified = meta.getProperty(LAST_MODIFIED);
+            entry.fetched = Long.parseLong(meta.getProperty(FETCHED, "0"));
+            final InputStream contentIn = new FileInputStream(contentFile);
+            try {
+                entry.content = new String(readFully(contentIn), UTF_8);
+            } finally {
+                contentIn.close();
+            }
+            return entry;
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine("Cached config not readable: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            JavaAgent.LOGGER.fine("Cached config not readable: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Writes the copy into temporary files which are renamed, so concurrent agents never read a partial config.
+     * A failure is only logged, the agent works without the cache.
+     */
+    private void write(String url, Entry entry) {
+        try {
+            if (!isPrivate(true)) {
+                return;
+            }
+            final Properties meta = new Properties();
+            meta.setProperty("url", url);
+            if (entry.etag != null) {
+                meta.setProperty(ETAG, entry.etag);
+            }
+            if (entry.lastModified != null) {
+                meta.setProperty(LAST_MODIFIED, entry.lastModified);
+            }
+            meta.setProperty(FETCHED, String.valueOf(entry.fetched));
+
+            final File contentTemp = File.createTempFile("config", ".tmp", directory);
+            writeFile(contentTemp, entry.content.getBytes(UTF_8));
+            final ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+            meta.store(metaBytes, null);
+            final File metaTemp = File.createTempFile("config", ".tmp", directory);
+            writeFile(metaTemp, metaBytes.toByteArray());
+            // the content first, an old meta file only leads to one more revalidation
+            rename(contentTemp, file(url, ".yml"));
+            rename(metaTemp, file(url, ".properties"));
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine("Config could not be cached: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tests if the directory is a directory of this user, which only the user may access.
+     *
+     * @param create create the directory if it does not exist
+     * @return false if the directory does not exist or belongs to someone else
+     */
+    private boolean isPrivate(boolean create) {
+        final Path path = directory.toPath();
+        try {
+            if (create && !Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                createDirectory(path);
+            }
+            // a symbolic link could point anywhere, like into the directory of another user
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
+            }
+            if (!isOwned(path)) {
+                JavaAgent.LOGGER.warning("The config cache " + directory + " belongs to another user and is not used");
+                return false;
+            }
+            final PosixFileAttributeView view = Files.getFileAttributeView(
+                    path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS
+            );
+            if (view != null && !OWNER_ONLY.equals(view.readAttributes().permissions())) {
+                view.setPermissions(OWNER_ONLY);
+            }
+            return true;
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine("Config cache not usable: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void createDirectory(Path path) throws IOException {
+        final Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try {
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } else {
+                Files.createDirectory(path);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created by a concurrent agent, its owner is checked afterwards
+        }
+    }
+
+    private static boolean isOwned(Path path) throws IOException {
+        return currentUser().equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    /**
+     * The user is the owner of a file this process creates, the name of the user might not be known to the system.
+     */
+    private static synchronized UserPrincipal currentUser() throws IOException {
+        if (currentUser == null) {
+            final Path probe = Files.createTempFile("jocose-owner", ".tmp");
+            try {
+                currentUser = Files.getOwner(probe);
+            } finally {
+                Files.delete(probe);
+            }
+        }
+        return currentUser;
+    }
+
+    private File file(String url, String suffix) {
+        return new File(directory, hash(url) + suffix);
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Windows does not replace existing files
+            to.delete();
+            if (!from.renameTo(to)) {
+                from.delete();
+                throw new IOException("Could not rename " + from + " to " + to);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static String hash(String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(UTF_8));
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Entry is a cached copy of a config.
+     */
+    static class Entry {
+        String content;
+        String etag;
+        String lastModified;
+        long fetched;
+    }
+}
@@ -0,0 +1,139 @@
+package org.griesbacher.jocose;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler runs all periodic work of the agent on one shared executor, heartbeats run on their own thread.
+ * Every task is planned again after it finished, with its interval randomly stretched or shortened by the jitter,
+ * so agents which started at the same time do not contact consul in lockstep.
+ */
+class Scheduler {
+    // collections, pushes and consul polls may block for seconds, two of them at once still leave a thread
+    private static final int THREADS = 2;
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(
+            THREADS, new ServerExecutors.NamedThreadFactory("jocose-scheduler-", true)
+    );
+    // blocked collections or pushes must never delay a ttl pass beyond the ttl of the check
+    private static final ScheduledThreadPoolExecutor HEARTBEATS = new ScheduledThreadPoolExecutor(
+            1, new ServerExecutors.NamedThreadFactory("jocose-heartbeat-", true)
+    );
+    private static final Random RANDOM = new Random();
+
+    static {
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+        HEARTBEATS.setRemoveOnCancelPolicy(true);
+    }
+
+    private Scheduler() {
+    }
+
+    /**
+     * Runs the task repeatedly, until it gets cancelled.
+     *
+     * @param task         the work to do, exceptions are logged and do not stop the schedule
+     * @param initialDelay in milliseconds before the first run
+     * @param interval     in milliseconds between the end of a run and the start of the next one
+     * @param jitter       the fraction of the interval, by which each delay may randomly differ
+     * @return the handle to cancel the task
+     */
+    static Task schedule(Runnable task, long initialDelay, long interval, double jitter) {
+        final Task scheduled = new Task(EXECUTOR, task, interval, jitter);
+        scheduled.plan(initialDelay);
+        return scheduled;
+    }
+
+    /**
+     * Runs the task repeatedly on the heartbeat thread, until it gets cancelled. Collections and other blocking work
+     * of the shared executor can not delay it. The task has to be short and bounded by timeouts, as all heartbeats
+     * share one thread.
+     *
+     * @param task         the work to do, exceptions are logged and do not stop the schedule
+     * @param initialDelay in milliseconds before the first run
+     * @param interval     in milliseconds between the end of a run and the start of the next one
+     * @param jitter       the fraction of the interval, by which each delay may randomly differ
+     * @return the handle to cancel the task
+     */
+    static Task heartbeat(Runnable task, long initialDelay, long interval, double jitter) {
+        final Task scheduled = new Task(HEARTBEATS, task, interval, jitter);
+        scheduled.plan(initialDelay);
+        return scheduled;
+    }
+
+    /**
+     * Runs the task once after the delay.
+     *
+     * @param task  the work to do
+     * @param delay in milliseconds before the run
+     * @return the future to cancel the task
+     */
+    static ScheduledFuture<?> once(Runnable task, long delay) {
+        return EXECUTOR.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Randomizes the interval uniformly within interval * (1 +- jitter).
+     *
+     * @param interval the interval in milliseconds
+     * @param jitter   the fraction of the interval, by which the result may differ
+     * @return the randomized interval, at least 1ms
+     */
+    static long jitter(long interval, double jitter) {
+        final double random;
+        synchronized (RANDOM) {
+            random = RANDOM.nextDouble();
+        }
+        return Math.max(1, interval + Math.round((random * 2 - 1) * jitter * interval));
+    }
+
+    /**
+     * Task is a periodic task of the scheduler.
+     */
+    static class Task implements Runnable {
+        private final ScheduledThreadPoolExecutor executor;
+        private final Runnable task;
+        private final long interval;
+        private final double jitter;
+        private volatile boolean cancelled;
+        private volatile ScheduledFuture<?> next;
+
+        private Task(ScheduledThreadPoolExecutor executor, Runnable task, long interval, double jitter) {
+            this.executor = executor;
+            this.task = task;
+            this.interval = interval;
+            this.jitter = jitter;
+        }
+
+        private void plan(long delay) {
+            if (!cancelled) {
+                next = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                JavaAgent.LOGGER.warning("Scheduled task failed: " + e);
+            } finally {
+                plan(jitter(interval, jitter));
+            }
+        }
+
+        /**
+         * Stops the task, a run which is in progress will be finished.
+         */
+        void cancel() {
+            cancelled = true;
+            final ScheduledFuture<?> future = next;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * ScrapeCache collects the registry at most once per time to live.
+ * Scrapes which arrive while a collection is running wait for it and share its result,
+ * so multiple Prometheus servers scraping the same exporter cause only one walk over all MBeans.
+ */
+class ScrapeCache {
+    private static final Gauge SCRAPE_COLLECTIONS = Gauge.build().name(PROMETHEUS_PREFIX + "scrape_collections")
+            .help("Amount of times the registry has been collected for a scrape.").register();
+    private static final Gauge SCRAPE_CACHE_HITS = Gauge.build().name(PROMETHEUS_PREFIX + "scrape_cache_hits")
+            .help("Amount of scrapes which have been served by a shared or cached collection.").register();
+
+    private final CollectorRegistry registry;
+    private final long ttlNanos;
+    private final Object lock = new Object();
+    private ScrapeResult current;
+    private FutureTask<ScrapeResult> inFlight;
+
+    /**
+     * Creates a new cache for the given registry.
+     *
+     * @param registry the registry to collect
+     * @param ttl      time in milliseconds a result will be reused, 0 shares only concurrent collections.
+     *                 Long.MAX_VALUE keeps the result until it is replaced by refresh().
+     */
+    ScrapeCache(CollectorRegistry registry, long ttl) {
+        this.registry = registry;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Serializes the given registry into the text format.
+     *
+     * @param registry the registry to collect
+     * @return the serialized metrics
+     * @throws IOException if the metrics could not be written
+     */
+    static byte[] collect(CollectorRegistry registry) throws IOException {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream(1 << 16);
+        final Writer writer = new OutputStreamWriter(response);
+        TextFormat.write004(writer, registry.metricFamilySamples());
+        writer.close();
+        return response.toByteArray();
+    }
+
+    /**
+     * Returns a result which is not older than the time to live, collects a new one if needed.
+     *
+     * @return the current scrape result
+     * @throws IOException if the collection failed
+     */
+    ScrapeResult get() throws IOException {
+        return get(false);
+    }
+
+    /**
+     * Collects a new result, even if the current one is not expired. Scrapes waiting meanwhile will share it.
+     *
+     * @return the new scrape result
+     * @throws IOException if the collection failed
+     */
+    ScrapeResult refresh() throws IOException {
+        return get(true);
+    }
+
+    /**
+     * Returns the current result without collecting or waiting for a collection.
+     *
+     * @return the current scrape result, null if there is none or it is expired
+     */
+    ScrapeResult peek() {
+        synchronized (lock) {
+            return current != null && !current.isExpired(ttlNanos) ? current : null;
+        }
+    }
+
+    private ScrapeResult get(boolean force) throws IOException {
+        final FutureTask<ScrapeResult> task;
+        boolean owner = false;
+        synchronized (lock) {
+            if (!force && current != null && !current.isExpired(ttlNanos)) {
+                SCRAPE_CACHE_HITS.inc();
+                return current;
+            }
+            if (inFlight == null) {
+                inFlight = new FutureTask<ScrapeResult>(new Callable<ScrapeResult>() {
+                    public ScrapeResult call() throws Exception {
+                        SCRAPE_COLLECTIONS.inc();
+                        return new ScrapeResult(collect(registry), System.nanoTime());
+                    }
+                });
+                owner = true;
+            } else {
+                SCRAPE_CACHE_HITS.inc();
+            }
+            task = inFlight;
+        }
+
+        if (owner) {
+            task.run();
+            synchronized (lock) {
+                inFlight = null;
+                if (!task.isCancelled()) {
+                    try {
+                        current = task.get();
+                    } catch (Exception e) {
+                        JavaAgent.LOGGER.fine("Collection failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the collection");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Collection failed: " + e.getCause());
+        }
+    }
+}
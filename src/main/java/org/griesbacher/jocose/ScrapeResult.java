@@ -0,0 +1,70 @@
+package org.griesbacher.jocose;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ScrapeResult holds the serialized output of one collection pass.
+ * The gzip compressed form is created on the first request which asks for it and kept afterwards.
+ */
+class ScrapeResult {
+    private final byte[] body;
+    private final long createdNanos;
+    private byte[] gzipBody;
+
+    ScrapeResult(byte[] body, long createdNanos) {
+        this.body = body;
+        this.createdNanos = createdNanos;
+    }
+
+    /**
+     * Compresses the given bytes into one gzip member.
+     *
+     * @param data the bytes to compress
+     * @return the compressed bytes
+     * @throws IOException if the compression failed
+     */
+    static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(data.length / 8, 512));
+        final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(data);
+        gzip.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * @return the text exposition format of the collected metrics
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the gzip compressed text exposition format, it will be compressed only once
+     * @throws IOException if the compression failed
+     */
+    synchronized byte[] getGzipBody() throws IOException {
+        if (gzipBody == null) {
+            gzipBody = gzip(body);
+        }
+        return gzipBody;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the collection has been finished
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Tests if this result is older than the given time to live.
+     *
+     * @param ttlNanos the time to live in nanoseconds
+     * @return true if the result should not be served anymore
+     */
+    boolean isExpired(long ttlNanos) {
+        return System.nanoTime() - createdNanos >= ttlNanos;
+    }
+}
@@ -0,0 +1,178 @@
+package org.griesbacher.jocose;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ServerExecutors creates the executor which handles the requests of the metrics web server.
+ */
+class ServerExecutors {
+    // the amount of threads the prometheus HTTPServer uses
+    static final int MAX_DEFAULT_THREADS = 5;
+    private static final String CGROUP_V2_CPU_MAX = "/sys/fs/cgroup/cpu.max";
+    private static final String CGROUP_V1_QUOTA = "/sys/fs/cgroup/cpu/cpu.cfs_quota_us";
+    private static final String CGROUP_V1_PERIOD = "/sys/fs/cgroup/cpu/cpu.cfs_period_us";
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * Creates the executor described by the exporter section.
+     *
+     * @param exporter the exporter section of the configuration
+     * @param daemon   if the threads should be daemon threads
+     * @return the executor for the web server
+     */
+    static ExecutorService create(Config.Exporter exporter, boolean daemon) {
+        if (exporter.virtualThreads) {
+            final ExecutorService virtual = virtualThreadExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            JavaAgent.LOGGER.info("Virtual threads are not available, falling back to a thread pool");
+        }
+
+        final int threads = exporter.threads > 0 ? exporter.threads : defaultThreads();
+        return new CountingExecutor(threads, exporter.queueSize, daemon);
+    }
+
+    /**
+     * The default amount of threads is limited by the cpu quota of the container, but never exceeds five.
+     *
+     * @return the amount of threads to use
+     */
+    static int defaultThreads() {
+        return Math.max(1, Math.min(MAX_DEFAULT_THREADS, (int) Math.ceil(cpuQuota())));
+    }
+
+    /**
+     * Reads the cpu quota of the cgroup, version 2 and 1 are supported.
+     *
+     * @return the amount of cpus this process may use
+     */
+    static double cpuQuota() {
+        final double cpus = Runtime.getRuntime().availableProcessors();
+        try {
+            final String cpuMax = readFirstLine(CGROUP_V2_CPU_MAX);
+            if (cpuMax != null) {
+                final String[] quotaPeriod = cpuMax.trim().split("\\s+");
+                if (quotaPeriod.length == 2 && !"max".equals(quotaPeriod[0])) {
+                    return Math.min(cpus, Double.parseDouble(quotaPeriod[0]) / Double.parseDouble(quotaPeriod[1]));
+                }
+                return cpus;
+            }
+            final String quota = readFirstLine(CGROUP_V1_QUOTA);
+            final String period = readFirstLine(CGROUP_V1_PERIOD);
+            if (quota != null && period != null && Long.parseLong(quota.trim()) > 0) {
+                return Math.min(cpus, Double.parseDouble(quota.trim()) / Double.parseDouble(period.trim()));
+            }
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        } catch (NumberFormatException e) {
+            JavaAgent.LOGGER.fine(e.getMessage());
+        }
+        return cpus;
+    }
+
+    private static String readFirstLine(String path) throws IOException {
+        final File file = new File(path);
+        if (!file.canRead()) {
+            return null;
+        }
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Virtual threads exist since Java 21, they are looked up by reflection to stay compatible with older versions.
+     *
+     * @return an executor which starts a virtual thread per task, or null if not available
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            JavaAgent.LOGGER.fine("Virtual threads not available: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * CountingExecutor is a thread pool with an unbounded queue, which counts the pending requests. It never rejects a
+     * task: a rejected one would run on the dispatcher thread of the web server or drop the connection unanswered.
+     * The queueSize is no bound of the executor, the scrape handlers ask isOverloaded and answer 503 themselves.
+     */
+    static class CountingExecutor extends ThreadPoolExecutor {
+        private final AtomicInteger pending = new AtomicInteger();
+        private final int limit;
+
+        /**
+         * @param threads   the amount of threads
+         * @param queueSize the amount of waiting requests after which isOverloaded holds, 0 for no limit
+         * @param daemon    if the threads should be daemon threads
+         */
+        CountingExecutor(int threads, int queueSize, boolean daemon) {
+            super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("jocose-http-", daemon));
+            limit = queueSize > 0 ? threads + queueSize : Integer.MAX_VALUE;
+            // idle agents should not keep their threads
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            pending.incrementAndGet();
+            try {
+                super.execute(command);
+            } catch (RuntimeException e) {
+                pending.decrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            pending.decrementAndGet();
+        }
+
+        /**
+         * @return if more requests are running or waiting, including the calling one, than threads and queue hold
+         */
+        boolean isOverloaded() {
+            return pending.get() > limit;
+        }
+    }
+
+    /**
+     * NamedThreadFactory names the threads after the agent, so they can be told apart from the application threads.
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final boolean daemon;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix, boolean daemon) {
+            this.prefix = prefix;
+            this.daemon = daemon;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sidecar is a host-level process which registers the agents of its host at consul.
+ * It offers the endpoints of the consul agent API which the agents use, so an agent only needs the address of the
+ * sidecar as consul address. The sidecar writes all registrations with batched transactions and checks them
+ * with a single catalog request, instead of one registration loop per agent.
+ */
+public class Sidecar {
+    static final int DEFAULT_PORT = 9099;
+    static final long DEFAULT_INTERVAL = 30 * 1000;
+    // changes within this delay are sent in one transaction
+    static final long BATCH_DELAY = 1000;
+    private static final Gauge SIDECAR_SYNC = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "sidecar_sync_seconds")
+            .help("Time in seconds to synchronize the agents with the consul catalog").register();
+    private static final Gauge SIDECAR_SYNC_FAILURES = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "sidecar_sync_failures")
+            .help("Amount of failed synchronizations with the consul catalog.").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SERVICE = "/v1/agent/service/";
+    private static final String REGISTER = SERVICE + "register";
+    private static final String DEREGISTER = SERVICE + "deregister/";
+    private static final String PASS = "/v1/agent/check/pass/service:";
+    private static final String SNAPSHOTS = "/metrics/agents";
+
+    private final SidecarRegistry registry;
+    private final ConsulCatalog catalog;
+    private final long interval;
+    // one synchronization at a time, the monitor of the sidecar is not held during the requests to consul
+    private final Object syncLock = new Object();
+    // the agents as they have been written to consul
+    private Map<String, SidecarRegistry.Agent> synced = new HashMap<String, SidecarRegistry.Agent>();
+    private boolean syncPending;
+    private volatile long started;
+    private MetricsHTTPServer server;
+    private Scheduler.Task task;
+
+    /**
+     * @param catalog  the consul catalog
+     * @param interval milliseconds between two checks of the catalog, agents silent for three intervals are removed
+     */
+    Sidecar(ConsulCatalog catalog, long interval) {
+        this.catalog = catalog;
+        this.interval = interval;
+        this.registry = new SidecarRegistry(3 * interval);
+    }
+
+    /**
+     * Starts the sidecar: java -jar jocose_javaagent.jar [-H host] [-p port] [-n node] [-i interval] [-s directory]
+     * With -s the snapshots of the agents in the directory are served at /metrics/agents. The consul address is taken from CONSUL_HTTP_ADDR, the ACL token from CONSUL_HTTP_TOKEN.
+     *
+     * @param args the arguments, like the agent arguments
+     * @throws IOException if the web server could not be started
+     */
+    public static void main(String[] args) throws IOException {
+        String host = "127.0.0.1";
+        int port = DEFAULT_PORT;
+        String node = InetAddress.getLocalHost().getHostName() + "-jocose";
+        long interval = DEFAULT_INTERVAL;
+        String snapshots = null;
+        for (String arg : args) {
+            if (arg.length() <= 2) {
+                continue;
+            }
+            final String prefix = arg.substring(0, 2);
+            final String value = arg.substring(2).trim();
+            if ("-H".equals(prefix)) {
+                host = value;
+            } else if ("-p".equals(prefix)) {
+                try {
+                    port = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    JavaAgent.errorExit("The given port is not valid: '%s'", value);
+                }
+            } else if ("-n".equals(prefix)) {
+                node = value;
+            } else if ("-i".equals(prefix)) {
+                interval = ConfigHandler.parseDuration(value);
+            } else if ("-s".equals(prefix)) {
+                snapshots = value;
+            }
+        }
+        final ConsulHttpClient client = new ConsulHttpClient(ConsulConfigSource.environmentAddress());
+        client.setToken(System.getenv("CONSUL_HTTP_TOKEN"));
+        final Sidecar sidecar = new Sidecar(
+                new ConsulCatalog(client, node, InetAddress.getLocalHost().getHostAddress()), interval
+        );
+        sidecar.start(new InetSocketAddress(host, port), false);
+        if (snapshots != null) {
+            sidecar.serveSnapshots(new File(snapshots));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                sidecar.stop();
+            }
+        });
+    }
+
+    /**
+     * Starts the web server and the periodic check of the catalog.
+     *
+     * @param address the address of the web server
+     * @param daemon  if the web server threads should be daemon threads
+     * @throws IOException if the web server could not be started
+     */
+    void start(InetSocketAddress address, boolean daemon) throws IOException {
+        started = System.currentTimeMillis();
+        server = new MetricsHTTPServer(address, CollectorRegistry.defaultRegistry, daemon);
+        server.server.createContext("/v1/agent/", new AgentHandler());
+        task = Scheduler.schedule(new Runnable() {
+            public void run() {
+                sync();
+            }
+        }, 0, interval, 0.2);
+    }
+
+    /**
+     * Serves the merged snapshots of the agents, a snapshot which has not been replaced for three intervals is ignored.
+     *
+     * @param directory the snapshot directory of the agents
+     */
+    void serveSnapshots(File directory) {
+        server.server.createContext(SNAPSHOTS, new SnapshotAggregator(directory, 3 * interval));
+    }
+
+    int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Stops the sidecar and removes the services of its agents from consul, they can not be checked anymore.
+     */
+    void stop() {
+        task.cancel();
+        server.stop();
+        synchronized (syncLock) {
+            final List<String> operations = new ArrayList<String>();
+            for (String id : getSynced().keySet()) {
+                operations.add(catalog.deleteService(id));
+            }
+            try {
+                catalog.apply(operations);
+            } catch (IOException e) {
+                JavaAgent.LOGGER.warning("Services could not be removed from consul: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Plans a synchronization soon, so the changes of agents which start together share a transaction.
+     */
+    private synchronized void requestSync() {
+        if (syncPending) {
+            return;
+        }
+        syncPending = true;
+        Scheduler.once(new Runnable() {
+            public void run() {
+                sync();
+            }
+        }, BATCH_DELAY);
+    }
+
+    /**
+     * Brings the catalog in line with the living agents. Consul is read once, written only for differences.
+     * Services in the catalog which the sidecar does not know are only removed three intervals after its start,
+     * the agents of a restarted sidecar need that long to register again.
+     */
+    void sync() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                syncPending = false;
+            }
+            final long start = System.nanoTime();
+            final Map<String, SidecarRegistry.Agent> living = registry.living();
+            final Map<String, SidecarRegistry.Agent> written = getSynced();
+            final boolean settled = System.currentTimeMillis() - started >= 3 * interval;
+            try {
+                Set<String> existing = catalog.services();
+                final List<String> operations = new ArrayList<String>();
+                if (existing == null) {
+                    operations.add(catalog.setNode());
+                    existing = new HashSet<String>();
+                }
+                for (SidecarRegistry.Agent agent : living.values()) {
+                    if (!existing.contains(agent.id) || written.get(agent.id) != agent) {
+                        operations.add(catalog.setService(agent));
+                        operations.add(catalog.setCheck(agent));
+                    }
+                }
+                for (String id : existing) {
+                    if (!living.containsKey(id) && (settled || written.containsKey(id))) {
+                        operations.add(catalog.deleteService(id));
+                    }
+                }
+                catalog.apply(operations);
+                setSynced(living);
+            } catch (IOException e) {
+                SIDECAR_SYNC_FAILURES.inc();
+                JavaAgent.LOGGER.warning("Consul catalog could not be synchronized: " + e.getMessage());
+            }
+            SIDECAR_SYNC.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        }
+    }
+
+    private synchronized Map<String, SidecarRegistry.Agent> getSynced() {
+        return synced;
+    }
+
+    private synchronized void setSynced(Map<String, SidecarRegistry.Agent> agents) {
+        synced = agents;
+    }
+
+    /**
+     * AgentHandler answers the requests of the agents like the consul agent API would.
+     */
+    private class AgentHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            final String path = exchange.getRequestURI().getPath();
+            final String method = exchange.getRequestMethod();
+            final String body = read(exchange.getRequestBody());
+            try {
+                if ("PUT".equals(method) && REGISTER.equals(path)) {
+                    try {
+                        if (registry.register(body)) {
+                            requestSync();
+                        }
+                        respond(exchange, HttpURLConnection.HTTP_OK, "");
+                    } catch (IOException e) {
+                        respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+                    }
+                } else if ("PUT".equals(method) && path.startsWith(DEREGISTER)) {
+                    if (registry.remove(path.substring(DEREGISTER.length()))) {
+                        requestSync();
+                        respond(exchange, HttpURLConnection.HTTP_OK, "");
+                    } else {
+                        respond(exchange, HttpURLConnection.HTTP_NOT_FOUND, "Unknown service");
+                    }
+                } else if ("PUT".equals(method) && path.startsWith(PASS)) {
+                    final boolean known = registry.touch(path.substring(PASS.length())) != null;
+                    respond(exchange, known ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_NOT_FOUND, "");
+                } else if ("GET".equals(method) && path.startsWith(SERVICE)) {
+                    final SidecarRegistry.Agent agent = registry.touch(path.substring(SERVICE.length()));
+                    if (agent == null) {
+                        respond(exchange, HttpURLConnection.HTTP_NOT_FOUND, "Unknown service");
+                    } else {
+                        respond(exchange, HttpURLConnection.HTTP_OK, new JsonWriter().beginObject()
+                                .name("ID").value(agent.id)
+                                .name("Service").value(agent.name)
+                                .endObject().toString());
+                    }
+                } else {
+                    respond(exchange, HttpURLConnection.HTTP_NOT_FOUND, "Not supported by the sidecar");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            final byte[] response = body.getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+            if (response.length > 0) {
+                final OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        }
+
+        private String read(InputStream in) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        }
+    }
+}
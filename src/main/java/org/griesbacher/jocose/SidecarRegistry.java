@@ -0,0 +1,154 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SidecarRegistry holds the agents which reported to the sidecar. An agent is known until it deregisters or stays
+ * silent for longer than the expiry, its registration check and ttl check count as signs of life.
+ */
+class SidecarRegistry {
+    private static final Gauge SIDECAR_AGENTS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "sidecar_agents")
+            .help("Amount of agents which report to the sidecar.").register();
+    private static final Gauge SIDECAR_EXPIRED = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "sidecar_agents_expired")
+            .help("Amount of agents which have been removed, because they stopped reporting.").register();
+
+    private final Map<String, Agent> agents = new HashMap<String, Agent>();
+    private final long expiry;
+
+    /**
+     * @param expiry milliseconds an agent may stay silent
+     */
+    SidecarRegistry(long expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * Adds or updates the agent of a consul service registration.
+     *
+     * @param registration the JSON an agent sends to /v1/agent/service/register
+     * @return true if the registration is new or changed
+     * @throws IOException if the registration is invalid
+     */
+    synchronized boolean register(String registration) throws IOException {
+        final Agent agent = Agent.parse(registration);
+        final Agent known = agents.get(agent.id);
+        if (known != null && known.registration.equals(agent.registration)) {
+            known.lastSeen = System.currentTimeMillis();
+            return false;
+        }
+        agents.put(agent.id, agent);
+        SIDECAR_AGENTS.set(agents.size());
+        return true;
+    }
+
+    /**
+     * Marks the agent as alive.
+     *
+     * @param id the service ID of the agent
+     * @return the agent, null if it is not known
+     */
+    synchronized Agent touch(String id) {
+        final Agent agent = agents.get(id);
+        if (agent != null) {
+            agent.lastSeen = System.currentTimeMillis();
+        }
+        return agent;
+    }
+
+    synchronized boolean remove(String id) {
+        final boolean removed = agents.remove(id) != null;
+        SIDECAR_AGENTS.set(agents.size());
+        return removed;
+    }
+
+    /**
+     * Removes the silent agents and returns the others.
+     *
+     * @return the living agents by ID
+     */
+    synchronized Map<String, Agent> living() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Agent> iterator = agents.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastSeen > expiry) {
+                iterator.remove();
+                SIDECAR_EXPIRED.inc();
+            }
+        }
+        SIDECAR_AGENTS.set(agents.size());
+        return new HashMap<String, Agent>(agents);
+    }
+
+    /**
+     * Agent is the service registration of an agent. A changed registration is a new Agent object.
+     */
+    static class Agent {
+        String id;
+        String name;
+        List<String> tags = Collections.emptyList();
+        String address;
+        long port;
+        // the normalized registration, to notice changes
+        String registration;
+        volatile long lastSeen;
+
+        /**
+         * Reads the fields of a consul service registration, the check is ignored as the sidecar checks the agent.
+         */
+        static Agent parse(String registration) throws IOException {
+            final Agent agent = new Agent();
+            final JsonReader reader = new JsonReader(registration);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("ID".equals(name)) {
+                    agent.id = reader.nextString();
+                } else if ("Name".equals(name)) {
+                    agent.name = reader.nextString();
+                } else if ("Address".equals(name)) {
+                    agent.address = reader.nextString();
+                } else if ("Port".equals(name)) {
+                    agent.port = reader.nextLong();
+                } else if ("Tags".equals(name) && reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                    agent.tags = new ArrayList<String>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        agent.tags.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (agent.id == null || "".equals(agent.id)) {
+                throw new IOException("The registration has no ID");
+            }
+            if (agent.name == null) {
+                agent.name = agent.id;
+            }
+            final JsonWriter writer = new JsonWriter().beginObject()
+                    .name("ID").value(agent.id)
+                    .name("Name").value(agent.name)
+                    .name("Tags").beginArray();
+            for (String tag : agent.tags) {
+                writer.value(tag);
+            }
+            writer.endArray().name("Port").value(agent.port);
+            if (agent.address != null) {
+                writer.name("Address").value(agent.address);
+            }
+            agent.registration = writer.endObject().toString();
+            agent.lastSeen = System.currentTimeMillis();
+            return agent;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SnapshotAggregator merges the snapshot files of the agents of a host into one exposition, so Prometheus needs only
+ * one target per host. Every sample gets the id of the snapshot, the pid and the service of its agent as labels. The
+ * id tells agents apart whose pids collide in different pid namespaces. The samples of a metric are grouped below one
+ * HELP and TYPE, as the text format demands. Labels of the samples with the same names are kept with the prefix
+ * exported_.
+ */
+class SnapshotAggregator implements HttpHandler {
+    private static final Gauge SNAPSHOT_AGENTS = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "snapshot_agents")
+            .help("Amount of agent snapshots in the last merged exposition.").register();
+    private static final Gauge SNAPSHOT_MERGE = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "snapshot_merge_seconds")
+            .help("Time in seconds to read and merge the agent snapshots").register();
+    private static final Gauge SNAPSHOT_READ_FAILURES = Gauge.build().name(JavaAgent.PROMETHEUS_PREFIX + "snapshot_read_failures")
+            .help("Amount of snapshots which could not be read consistently.").register();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] AGENT_LABELS = {"agent", "pid", "service"};
+    private static final int REMOVE_AFTER_MAX_AGES = 10;
+
+    private final File directory;
+    private final long maxAge;
+
+    /**
+     * @param directory the directory of the snapshot files
+     * @param maxAge    milliseconds after which a snapshot which has not been replaced is ignored, after ten times as
+     *                  long its file is removed
+     */
+    SnapshotAggregator(File directory, long maxAge) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            final byte[] body = merge();
+            exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads all current snapshots and merges them.
+     *
+     * @return the merged exposition in the text format
+     */
+    byte[] merge() {
+        final long start = System.nanoTime();
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SnapshotFile.SUFFIX);
+            }
+        });
+        final Map<String, Family> families = new LinkedHashMap<String, Family>();
+        int agents = 0;
+        if (files != null) {
+            // the same order on every scrape
+            Arrays.sort(files);
+            final long now = System.currentTimeMillis();
+            for (File file : files) {
+                final SnapshotFile.Snapshot snapshot;
+                try {
+                    snapshot = SnapshotFile.read(file);
+                } catch (IOException e) {
+                    JavaAgent.LOGGER.fine("Snapshot not readable: " + e.getMessage());
+                    continue;
+                }
+                if (snapshot == null) {
+                    SNAPSHOT_READ_FAILURES.inc();
+                    continue;
+                }
+                if (now - snapshot.written > REMOVE_AFTER_MAX_AGES * maxAge) {
+                    // the agent died without removing its file, a living one would create it again
+                    file.delete();
+                    continue;
+                }
+                if (now - snapshot.written > maxAge) {
+                    continue;
+                }
+                add(families, snapshot);
+                agents++;
+            }
+        }
+        final StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            if (family.help != null) {
+                out.append(family.help).append('\n');
+            }
+            if (family.type != null) {
+                out.append(family.type).append('\n');
+            }
+            for (String sample : family.samples) {
+                out.append(sample).append('\n');
+            }
+        }
+        SNAPSHOT_AGENTS.set(agents);
+        SNAPSHOT_MERGE.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+        return out.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Adds the samples of a snapshot to their families.
+     */
+    static void add(Map<String, Family> families, SnapshotFile.Snapshot snapshot) {
+        final String labels = "agent=\"" + escape(snapshot.id) + "\",pid=\"" + snapshot.pid
+                + "\",service=\"" + escape(snapshot.service) + "\"";
+        Family current = null;
+        for (String line : new String(snapshot.body, UTF_8).split("\n")) {
+            if (line.length() == 0) {
+                continue;
+            }
+            if (line.startsWith("# HELP ") || line.startsWith("# TYPE ")) {
+                final String[] parts = line.split(" ", 4);
+                if (parts.length < 3) {
+                    continue;
+                }
+                current = family(families, parts[2]);
+                if (line.startsWith("# HELP ")) {
+                    if (current.help == null) {
+                        current.help = line;
+                    }
+                } else if (current.type == null) {
+                    current.type = line;
+                }
+                continue;
+            }
+            if (line.charAt(0) == '#') {
+                continue;
+            }
+            int end = 0;
+            while (end < line.length() && line.charAt(end) != '{' && line.charAt(end) != ' ') {
+                end++;
+            }
+            final String name = line.substring(0, end);
+            // the samples of histograms and summaries carry suffixes of their family name
+            final Family family = current != null && name.startsWith(current.name) ? current : family(families, name);
+            if (end < line.length() && line.charAt(end) == '{') {
+                final boolean noLabels = end + 1 < line.length() && line.charAt(end + 1) == '}';
+                family.samples.add(line.substring(0, end + 1) + labels + (noLabels ? "" : ",")
+                        + exportLabels(line.substring(end + 1)));
+            } else {
+                family.samples.add(name + "{" + labels + "}" + line.substring(end));
+            }
+        }
+    }
+
+    private static Family family(Map<String, Family> families, String name) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name);
+            families.put(name, family);
+        }
+        return family;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Renames the labels of a sample which collide with the labels of the agent, as Prometheus does on a conflict.
+     *
+     * @param labels the sample after the opening brace
+     */
+    static String exportLabels(String labels) {
+        final StringBuilder out = new StringBuilder(labels.length() + 16);
+        boolean quoted = false;
+        boolean nameStart = true;
+        for (int i = 0; i < labels.length(); i++) {
+            final char c = labels.charAt(i);
+            if (quoted) {
+                if (c == '\\' && i + 1 < labels.length()) {
+                    out.append(c);
+                    i++;
+                    out.append(labels.charAt(i));
+                    continue;
+                }
+                quoted = c != '"';
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '}') {
+                out.append(labels, i, labels.length());
+                return out.toString();
+            } else if (nameStart) {
+                for (String name : AGENT_LABELS) {
+                    if (labels.startsWith(name + "=", i)) {
+                        out.append("exported_");
+                        break;
+                    }
+                }
+            }
+            nameStart = !quoted && (c == ',' || (nameStart && c == ' '));
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Family collects the samples of one metric of all agents.
+     */
+    static class Family {
+        final String name;
+        final List<String> samples = new ArrayList<String>();
+        String help;
+        String type;
+
+        Family(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.griesbacher.jocose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotFile is a memory-mapped file into which an agent writes its serialized metrics, so a process of the same
+ * host can read them without a network request.
+ * The header works like a seqlock: the sequence is odd while the writer changes the snapshot. A reader retries if the
+ * sequence was odd or changed during its read. Other processes see the memory without ordering guarantees, so the
+ * snapshot carries a CRC32 as well, a torn read never passes both checks.
+ */
+class SnapshotFile {
+    static final String SUFFIX = ".snapshot";
+    static final int HEADER_SIZE = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4a43534e;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SEQUENCE = 4;
+    private static final int LENGTH = 8;
+    private static final int CRC = 12;
+    private static final int WRITTEN = 16;
+    private static final int PID = 24;
+    private static final int SERVICE_LENGTH = 28;
+    private static final int SERVICE = 30;
+    private static final int MAX_SERVICE_LENGTH = HEADER_SIZE - SERVICE;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int READ_ATTEMPTS = 10;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int sequence;
+
+    SnapshotFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replaces the snapshot. Only one process may write a file.
+     *
+     * @param pid     the pid of the writing process
+     * @param service the name of the service of the agent
+     * @param body    the metrics in the text format
+     * @throws IOException if the file could not be written
+     */
+    synchronized void write(int pid, String service, byte[] body) throws IOException {
+        if (buffer == null || buffer.capacity() < HEADER_SIZE + body.length) {
+            map(HEADER_SIZE + body.length);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(SEQUENCE, ++sequence);
+        buffer.putInt(LENGTH, body.length);
+        buffer.putInt(CRC, (int) crc.getValue());
+        buffer.putLong(WRITTEN, System.currentTimeMillis());
+        buffer.putInt(PID, pid);
+        final byte[] name = service.getBytes(UTF_8);
+        final int nameLength = Math.min(name.length, MAX_SERVICE_LENGTH);
+        buffer.putShort(SERVICE_LENGTH, (short) nameLength);
+        for (int i = 0; i < nameLength; i++) {
+            buffer.put(SERVICE + i, name[i]);
+        }
+        final ByteBuffer data = buffer.duplicate();
+        data.position(HEADER_SIZE);
+        data.put(body);
+        buffer.putInt(SEQUENCE, ++sequence);
+    }
+
+    private void map(int size) throws IOException {
+        close();
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        // a new writer continues the sequence of a former one, readers must notice the change
+        if (randomAccessFile.length() >= HEADER_SIZE) {
+            randomAccessFile.seek(SEQUENCE);
+            sequence = randomAccessFile.readInt() | 1;
+            sequence++;
+        }
+        randomAccessFile.setLength(Math.max(capacity, randomAccessFile.length()));
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    /**
+     * Closes the file, the snapshot stays readable.
+     */
+    synchronized void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                JavaAgent.LOGGER.fine(e.getMessage());
+            }
+        }
+        randomAccessFile = null;
+        buffer = null;
+    }
+
+    /**
+     * Reads a consistent snapshot of a file.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, null if no consistent snapshot could be read
+     * @throws IOException if the file could not be read
+     */
+    static Snapshot read(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() < HEADER_SIZE) {
+                return null;
+            }
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()
+            );
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                return null;
+            }
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                final int before = buffer.getInt(SEQUENCE);
+                if ((before & 1) == 1) {
+                    Thread.yield();
+                    continue;
+                }
+                final Snapshot snapshot = new Snapshot();
+                final int length = buffer.getInt(LENGTH);
+                final int crc = buffer.getInt(CRC);
+                snapshot.written = buffer.getLong(WRITTEN);
+                snapshot.pid = buffer.getInt(PID);
+                final int serviceLength = Math.min(Math.max(buffer.getShort(SERVICE_LENGTH), 0), MAX_SERVICE_LENGTH);
+                if (length < 0 || HEADER_SIZE + length > buffer.capacity()) {
+                    continue;
+                }
+                final byte[] service = new byte[serviceLength];
+                for (int i = 0; i < serviceLength; i++) {
+                    service[i] = buffer.get(SERVICE + i);
+                }
+                snapshot.body = new byte[length];
+                final ByteBuffer data = buffer.duplicate();
+                data.position(HEADER_SIZE);
+                data.get(snapshot.body);
+                if (buffer.getInt(SEQUENCE) != before) {
+                    continue;
+                }
+                final CRC32 check = new CRC32();
+                check.update(snapshot.body);
+                if ((int) check.getValue() != crc) {
+                    continue;
+                }
+                snapshot.service = new String(service, UTF_8);
+                snapshot.id = file.getName().endsWith(SUFFIX)
+                        ? file.getName().substring(0, file.getName().length() - SUFFIX.length()) : file.getName();
+                return snapshot;
+            }
+            return null;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Snapshot is the content of a snapshot file.
+     */
+    static class Snapshot {
+        // the name of the file, unique per agent
+        String id;
+        int pid;
+        String service;
+        long written;
+        byte[] body;
+    }
+}
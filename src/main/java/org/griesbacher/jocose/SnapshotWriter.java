@@ -0,0 +1,97 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Gauge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.griesbacher.jocose.JavaAgent.PROMETHEUS_PREFIX;
+
+/**
+ * SnapshotWriter writes the metrics of the agent in a fixed interval into its own snapshot file.
+ * The sidecar of the host serves the snapshots of all agents, so Prometheus does not need to scrape every agent.
+ */
+class SnapshotWriter implements Runnable {
+    private static final Gauge SNAPSHOT_WRITE = Gauge.build().name(PROMETHEUS_PREFIX + "snapshot_write_seconds")
+            .help("Duration in seconds of the last snapshot write.").register();
+    private static final Gauge SNAPSHOT_SIZE = Gauge.build().name(PROMETHEUS_PREFIX + "snapshot_bytes")
+            .help("Size in bytes of the last snapshot.").register();
+
+    private final ScrapeCache cache;
+    private final SnapshotFile file;
+    private final File path;
+    private final int pid;
+    private final long interval;
+    private String service = "";
+    private Scheduler.Task task;
+    private boolean stopped;
+
+    /**
+     * @param cache     the cache of the agent, a snapshot shares the collection with concurrent scrapes
+     * @param directory the directory of the snapshot files, it is created if needed
+     * @param interval  milliseconds between two snapshots
+     * @throws IOException if the directory could not be created
+     */
+    SnapshotWriter(ScrapeCache cache, File directory, long interval) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Snapshot directory could not be created: " + directory);
+        }
+        this.cache = cache;
+        this.pid = HostRegistry.pid();
+        // pids are reused, a file of a dead agent must never be taken over
+        this.path = new File(directory, UUID.randomUUID() + SnapshotFile.SUFFIX);
+        this.file = new SnapshotFile(path);
+        this.interval = interval;
+    }
+
+    /**
+     * @param service the name of the service, which the sidecar adds as label
+     */
+    synchronized void setService(String service) {
+        this.service = service == null ? "" : service;
+    }
+
+    /**
+     * Schedules the snapshots, the first one is written immediately.
+     */
+    synchronized void start() {
+        task = Scheduler.schedule(this, 0, interval, 0);
+    }
+
+    public void run() {
+        final long start = System.nanoTime();
+        try {
+            final byte[] body = cache.get().getBody();
+            synchronized (this) {
+                // a write after stop() would create the file again
+                if (stopped) {
+                    return;
+                }
+                // the sidecar removed the file after a long pause, the mapping of a removed file is invisible
+                if (!path.exists()) {
+                    file.close();
+                }
+                file.write(pid, service, body);
+            }
+            SNAPSHOT_SIZE.set(body.length);
+        } catch (IOException e) {
+            JavaAgent.LOGGER.fine("Snapshot could not be written: " + e.getMessage());
+        }
+        SNAPSHOT_WRITE.set(JavaAgent.nanoSecondsToSeconds(System.nanoTime() - start));
+    }
+
+    /**
+     * Stops the snapshots and removes the file, the sidecar must not serve metrics of a stopped agent.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (task != null) {
+            task.cancel();
+        }
+        file.close();
+        if (!path.delete()) {
+            JavaAgent.LOGGER.fine("Snapshot could not be removed: " + path);
+        }
+    }
+}
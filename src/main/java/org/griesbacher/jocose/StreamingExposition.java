@@ -0,0 +1,149 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * StreamingExposition writes metric families to a stream while they are collected.
+ * The text is encoded into a small buffer, which is taken from a pool and sent whenever it is full,
+ * so a scrape does not need a temporary array of the size of the whole response. The buffers live on the heap,
+ * a stream would copy a direct buffer into a temporary array anyway.
+ */
+class StreamingExposition {
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int POOL_SIZE = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final BlockingQueue<ByteBuffer> POOL = new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+
+    private StreamingExposition() {
+    }
+
+    private static ByteBuffer acquire() {
+        final ByteBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            // the first half holds the encoded bytes, the second one the chars waiting for encoding
+            return ByteBuffer.allocate(BUFFER_SIZE * 3);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void release(ByteBuffer buffer) {
+        POOL.offer(buffer);
+    }
+
+    /**
+     * Writes the given families in the text format to the stream. The stream will not be closed.
+     *
+     * @param out      the stream to write to
+     * @param families the families to write, they will be collected while iterating
+     * @throws IOException if the stream could not be written
+     */
+    static void write(OutputStream out, Enumeration<Collector.MetricFamilySamples> families) throws IOException {
+        final ByteBuffer buffer = acquire();
+        try {
+            final PooledBufferWriter writer = new PooledBufferWriter(out, buffer);
+            TextFormat.write004(writer, families);
+            writer.finish();
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * PooledBufferWriter encodes chars into a given buffer and drains it into a stream.
+     */
+    private static class PooledBufferWriter extends Writer {
+        private final OutputStream out;
+        private final ByteBuffer bytes;
+        private final CharBuffer chars;
+        private final CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        PooledBufferWriter(OutputStream out, ByteBuffer buffer) {
+            this.out = out;
+            buffer.position(0).limit(BUFFER_SIZE);
+            this.bytes = buffer.slice();
+            buffer.position(BUFFER_SIZE).limit(buffer.capacity());
+            this.chars = buffer.slice().asCharBuffer();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(chars.remaining(), len);
+                chars.put(cbuf, off, n);
+                off += n;
+                len -= n;
+                if (!chars.hasRemaining()) {
+                    encode(false);
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(chars.remaining(), len);
+                chars.put(str, off, off + n);
+                off += n;
+                len -= n;
+                if (!chars.hasRemaining()) {
+                    encode(false);
+                }
+            }
+        }
+
+        private void encode(boolean endOfInput) throws IOException {
+            chars.flip();
+            while (true) {
+                final CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                if (result.isOverflow()) {
+                    drain();
+                } else {
+                    break;
+                }
+            }
+            // an incomplete surrogate pair stays in the buffer until the next write
+            chars.compact();
+        }
+
+        private void drain() throws IOException {
+            out.write(bytes.array(), bytes.arrayOffset(), bytes.position());
+            bytes.clear();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            encode(false);
+            drain();
+        }
+
+        void finish() throws IOException {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+}
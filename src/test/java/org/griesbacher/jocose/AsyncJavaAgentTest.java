@@ -0,0 +1,65 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncJavaAgentTest {
+    @Test
+    public void asyncExporterTest() throws Exception {
+        final String config = getClass().getClassLoader().getResource("none_consul_example_config.yml").getFile();
+        final String host = "127.0.0.1";
+        final int port = 9877;
+        //Start exporter
+        final long start = System.nanoTime();
+        JavaAgent.premain("-H" + host + ",-p" + port + ",-cfile://" + config + ",-a10s", null);
+        final long premainDuration = System.nanoTime() - start;
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (JavaAgent.server == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("The exporter should start in the background", JavaAgent.server != null);
+
+        // The startup is ready after its last phase
+        boolean ready = false;
+        while (!ready && System.currentTimeMillis() < deadline) {
+            final HttpURLConnection con = (HttpURLConnection) new URL(
+                    String.format("http://%s:%d/metrics", host, port)).openConnection();
+            assertTrue(con.getResponseCode() == 200);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ready |= line.equals("jocose_startup_ready 1.0");
+            }
+            reader.close();
+        }
+        assertTrue(ready);
+        assertTrue("premain took " + premainDuration + "ns", premainDuration < 1000L * 1000 * 1000);
+
+        //Clean up
+        JavaAgent.server.stop();
+    }
+
+    @Test
+    public void asyncFailureTest() throws Exception {
+        // an invalid config must not end the JVM of the application
+        JavaAgent.premain("-H127.0.0.1,-p9878,-cfile:///does/not/exist.yml,-a10s", null);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (ready() != -1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(-1, ready(), 0.1);
+    }
+
+    private static double ready() {
+        return CollectorRegistry.defaultRegistry.getSampleValue("jocose_startup_ready");
+    }
+}
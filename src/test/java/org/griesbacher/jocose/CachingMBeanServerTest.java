@@ -0,0 +1,215 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingMBeanServerTest {
+    private MBeanServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        final CachingMBeanServerBuilder builder = new CachingMBeanServerBuilder();
+        server = builder.newMBeanServer("test", null, builder.newMBeanServerDelegate());
+    }
+
+    @Test
+    public void infoTest() throws Exception {
+        assertTrue(server instanceof CachingMBeanServer);
+        final ObjectName name = new ObjectName("test:type=Counting");
+        final CountingBean bean = new CountingBean("first");
+        server.registerMBean(bean, name);
+        final int calls = bean.infoCalls.get();
+
+        final MBeanInfo info = server.getMBeanInfo(name);
+        assertSame(info, server.getMBeanInfo(name));
+        assertEquals(calls + 1, bean.infoCalls.get());
+
+        // a new MBean of the same name brings its own info
+        server.unregisterMBean(name);
+        server.registerMBean(new CountingBean("second"), name);
+        assertEquals("second", server.getMBeanInfo(name).getAttributes()[0].getName());
+    }
+
+    @Test
+    public void mutableInfoTest() throws Exception {
+        CachingMBeanServerBuilder.setInfoTTL(0);
+        try {
+            final CachingMBeanServerBuilder builder = new CachingMBeanServerBuilder();
+            server = builder.newMBeanServer("test", null, builder.newMBeanServerDelegate());
+        } finally {
+            CachingMBeanServerBuilder.setInfoTTL(CachingMBeanServerBuilder.DEFAULT_INFO_TTL);
+        }
+        final ObjectName name = new ObjectName("test:type=Counting");
+        server.registerMBean(new CountingBean("first"), name);
+        // a dynamic MBean may change its info
+        assertNotSame(server.getMBeanInfo(name), server.getMBeanInfo(name));
+        // the delegate declares its info immutable
+        final ObjectName delegate = new ObjectName("JMImplementation:type=MBeanServerDelegate");
+        assertSame(server.getMBeanInfo(delegate), server.getMBeanInfo(delegate));
+    }
+
+    @Test
+    public void queryTest() throws Exception {
+        final ObjectName pattern = new ObjectName("test:*");
+        assertEquals(0, server.queryNames(pattern, null).size());
+        server.registerMBean(new CountingBean("first"), new ObjectName("test:type=First"));
+        assertEquals(1, server.queryNames(pattern, null).size());
+        assertEquals(1, server.queryMBeans(pattern, null).size());
+        // the result is a copy
+        server.queryNames(pattern, null).clear();
+        assertEquals(1, server.queryNames(pattern, null).size());
+
+        server.registerMBean(new CountingBean("second"), new ObjectName("test:type=Second"));
+        assertEquals(2, server.queryNames(pattern, null).size());
+        assertEquals(2, server.queryMBeans(pattern, null).size());
+        server.unregisterMBean(new ObjectName("test:type=First"));
+        assertEquals(1, server.queryMBeans(pattern, null).size());
+    }
+
+    @Test
+    public void hitTest() throws Exception {
+        server.registerMBean(new CountingBean("first"), new ObjectName("test:type=First"));
+        final double hits = hits();
+        for (int i = 0; i < 3; i++) {
+            server.getMBeanInfo(new ObjectName("test:type=First"));
+            server.queryNames(new ObjectName("test:*"), null);
+        }
+        assertEquals(hits + 4, hits(), 0.1);
+        assertTrue(CollectorRegistry.defaultRegistry.getSampleValue("jocose_mbean_metadata_cache_size") > 0);
+    }
+
+    @Test
+    public void bulkReadTest() throws Exception {
+        final ObjectName name = new ObjectName("test:type=Bulk");
+        final BulkBean bean = new BulkBean();
+        server.registerMBean(bean, name);
+        // outside of a collection every attribute is read alone
+        assertEquals("a", server.getAttribute(name, "a"));
+        assertEquals(1, bean.singleReads.get());
+
+        CachingMBeanServer.beginBulkReads();
+        try {
+            assertEquals("a", server.getAttribute(name, "a"));
+            assertEquals("b", server.getAttribute(name, "b"));
+            assertEquals(1, bean.bulkReads.get());
+            assertEquals(1, bean.singleReads.get());
+            try {
+                server.getAttribute(name, "broken");
+                fail("The failed attribute has to be read alone");
+            } catch (AttributeNotFoundException e) {
+                assertEquals(2, bean.singleReads.get());
+            }
+            // a value is only served once
+            assertEquals("a", server.getAttribute(name, "a"));
+            assertEquals(3, bean.singleReads.get());
+        } finally {
+            CachingMBeanServer.endBulkReads();
+        }
+    }
+
+    private static double hits() {
+        return CollectorRegistry.defaultRegistry.getSampleValue("jocose_mbean_metadata_cache_hits");
+    }
+
+    /**
+     * BulkBean is a DynamicMBean with an attribute, which can only be read alone and fails then.
+     */
+    public static class BulkBean extends CountingBean {
+        final AtomicInteger singleReads = new AtomicInteger();
+        final AtomicInteger bulkReads = new AtomicInteger();
+
+        BulkBean() {
+            super("a");
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            singleReads.incrementAndGet();
+            if ("broken".equals(name)) {
+                throw new AttributeNotFoundException(name);
+            }
+            return name;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            bulkReads.incrementAndGet();
+            final AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (!"broken".equals(name)) {
+                    list.add(new Attribute(name, name));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(BulkBean.class.getName(), "Bulk", new MBeanAttributeInfo[]{
+                    new MBeanAttributeInfo("a", "java.lang.String", "A", true, false, false),
+                    new MBeanAttributeInfo("b", "java.lang.String", "B", true, false, false),
+                    new MBeanAttributeInfo("broken", "java.lang.String", "Broken", true, false, false),
+                    new MBeanAttributeInfo("hidden", "java.lang.String", "Not readable", false, true, false)
+            }, null, null, null);
+        }
+    }
+
+    /**
+     * CountingBean is a DynamicMBean with one attribute, which counts the requests of its info.
+     */
+    public static class CountingBean implements DynamicMBean {
+        final AtomicInteger infoCalls = new AtomicInteger();
+        private final String attribute;
+
+        CountingBean(String attribute) {
+            this.attribute = attribute;
+        }
+
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            return 1;
+        }
+
+        public void setAttribute(Attribute value) {
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            final AttributeList list = new AttributeList();
+            for (String name : names) {
+                list.add(new Attribute(name, 1));
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return null;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            infoCalls.incrementAndGet();
+            return new MBeanInfo(CountingBean.class.getName(), "Counting", new MBeanAttributeInfo[]{
+                    new MBeanAttributeInfo(attribute, "int", "Attribute", true, false, false)
+            }, null, null, null);
+        }
+    }
+}
@@ -233,6 +233,25 @@ public class ConfigHandlerTest {
         assertTrue(String.format("Expected: '%s' Got: '%s'", expected, config.tags), config.tags.containsAll(expected));
     }
 
+    @Test
+    public void searchAttemptTest() throws Exception {
+        final String command = System.getProperty("sun.java.command");
+        try {
+            System.setProperty("sun.java.command",
+                    "org.apache.hadoop.mapred.YarnChild 10.0.0.1 44946 attempt_1506428524976_0013_m_000001_0 3");
+            assertEquals("1506428524976_0013", ConfigHandler.searchJob());
+            assertEquals("attempt_1506428524976_0013_m_000001_0", ConfigHandler.searchAttempt());
+            System.setProperty("sun.java.command", "test.Main 42 84");
+            assertEquals("", ConfigHandler.searchAttempt());
+        } finally {
+            if (command == null) {
+                System.clearProperty("sun.java.command");
+            } else {
+                System.setProperty("sun.java.command", command);
+            }
+        }
+    }
+
     @Test
     public void emptyTagsTest() throws Exception {
         String configString = "---\n" +
@@ -279,13 +298,81 @@ public class ConfigHandlerTest {
     @Test
     public void checkToStringTest() throws Exception {
         final Config.Check check = new Config.Check(true, "10s", "1m");
-        final String url = "http://localhost";
-        final String expected = String.format(",\n" +
-                "  \"Check\": {\n" +
-                "    \"DeregisterCriticalServiceAfter\": \"1m\",\n" +
-                "    \"HTTP\": \"%s\",\n" +
-                "    \"Interval\": \"10s\"\n" +
-                "  }\n", url);
+        final String url = "http://localhost/\"quoted\"";
+        final String expected = "{\"Check\":{" +
+                "\"DeregisterCriticalServiceAfter\":\"1m\"," +
+                "\"HTTP\":\"http://localhost/\\\"quoted\\\"\"," +
+                "\"Interval\":\"10s\"" +
+                "}}";
         assertTrue(String.format("Expected: '%s' Got: '%s'", expected, check.toJSON(url)), expected.equals(check.toJSON(url)));
     }
+
+    @Test
+    public void exporterTest() throws Exception {
+        String configString = "---\n" +
+                "exporter:\n" +
+                "  cacheTTL: \"5s\"\n" +
+                "consul:\n" +
+                "  enabled: false";
+        Config config = ConfigHandler.parseConfig(new StringReader(configString));
+        assertTrue(config.exporter.cacheTTL == 5000);
+        assertTrue(ConfigHandler.parseDuration("250ms") == 250);
+        assertTrue(ConfigHandler.parseDuration("2m") == 120000);
+        assertTrue(ConfigHandler.parseDuration("3") == 3000);
+    }
+
+    @Test
+    public void watchWaitTest() throws Exception {
+        String configString = "---\n" +
+                "consul:\n" +
+                "  enabled: false\n" +
+                "  watchWait: \"5m\"\n" +
+                "  registrationInterval: \"1m\"\n" +
+                "  jitter: 0.5";
+        Config config = ConfigHandler.parseConfig(new StringReader(configString));
+        assertTrue(config.watchWait == 300000);
+        assertTrue(config.registrationInterval == 60000);
+        assertTrue(config.jitter == 0.5);
+    }
+
+    @Test
+    public void invalidWatchWaitTest() throws Exception {
+        exit.expectSystemExitWithStatus(1);
+        String configString = "---\n" +
+                "consul:\n" +
+                "  enabled: false\n" +
+                "  watchWait: \"1h\"";
+        disableStdErr();
+        ConfigHandler.parseConfig(new StringReader(configString));
+        enableStdErr();
+    }
+
+    @Test
+    public void ttlCheckTest() throws Exception {
+        String configString = "---\n" +
+                "consul:\n" +
+                "  enabled: false\n" +
+                "  check:\n" +
+                "    enabled: true\n" +
+                "    type: ttl\n" +
+                "    checkInterval: \"30s\"\n" +
+                "    deregisterPeriod: \"1m\"";
+        Config config = ConfigHandler.parseConfig(new StringReader(configString));
+        assertTrue(config.check.isTTL());
+        assertTrue(config.check.passInterval == 10000);
+    }
+
+    @Test
+    public void invalidCheckTypeTest() throws Exception {
+        exit.expectSystemExitWithStatus(1);
+        String configString = "---\n" +
+                "consul:\n" +
+                "  enabled: false\n" +
+                "  check:\n" +
+                "    enabled: true\n" +
+                "    type: tcp";
+        disableStdErr();
+        ConfigHandler.parseConfig(new StringReader(configString));
+        enableStdErr();
+    }
 }
@@ -0,0 +1,143 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigReloaderTest {
+    private static final String CONFIG = "---\n" +
+            "consul:\n" +
+            "  enabled: false\n" +
+            "  tags:\n" +
+            "    - foo\n" +
+            "rules:\n" +
+            "  - pattern: \".*\"\n";
+    private final AtomicInteger registrations = new AtomicInteger();
+    private HttpServer consulServer;
+    private ReloadableCollector collector;
+    private ConfigReloader reloader;
+
+    @Before
+    public void setUp() throws Exception {
+        JavaAgent.LOGGER.setUseParentHandlers(false);
+        consulServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        consulServer.createContext("/v1/agent/service/register", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                registrations.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        consulServer.start();
+        final Config config = ConfigHandler.parseConfig(new StringReader(CONFIG));
+        final Consul consul = new Consul(
+                "id", "name", config.tags, "localhost", 9000,
+                "http://127.0.0.1:" + consulServer.getAddress().getPort(), config.check
+        );
+        collector = new ReloadableCollector(JavaAgent.createCollector(CONFIG, 0));
+        reloader = new ConfigReloader(collector, consul, null, CONFIG, config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        consulServer.stop(0);
+    }
+
+    @Test
+    public void applyTest() throws Exception {
+        final Collector first = collector.getDelegate();
+        assertFalse(reloader.apply(CONFIG));
+        assertSame(first, collector.getDelegate());
+
+        // only the rules changed, consul is left alone
+        assertTrue(reloader.apply(CONFIG + "lowercaseOutputName: true\n"));
+        assertNotSame(first, collector.getDelegate());
+        assertEquals(0, registrations.get());
+
+        assertTrue(reloader.apply(CONFIG.replace("foo", "bar")));
+        assertEquals(1, registrations.get());
+    }
+
+    @Test
+    public void ttlCheckTest() throws Exception {
+        final String ttlConfig = CONFIG.replace("rules:\n",
+                "  check:\n    enabled: true\n    type: ttl\n    checkInterval: 30s\nrules:\n");
+        final Config config = ConfigHandler.parseConfig(new StringReader(ttlConfig));
+        final Consul consul = new Consul(
+                "id", "name", config.tags, "localhost", 9000,
+                "http://127.0.0.1:" + consulServer.getAddress().getPort(), config.check
+        );
+        final ConsulTTLCheck ttlCheck = new ConsulTTLCheck(consul, config.check.passInterval, 0);
+        ttlCheck.start();
+        final ConfigReloader ttlReloader = new ConfigReloader(collector, consul, ttlCheck, ttlConfig, config);
+
+        // the reports follow the new ttl
+        assertTrue(ttlReloader.apply(ttlConfig.replace("30s", "60s")));
+        assertEquals(1, registrations.get());
+        assertEquals(20 * 1000, ttlCheck.getInterval());
+
+        // a disabled ttl check would not be reported anymore, the check is kept
+        assertTrue(ttlReloader.apply(ttlConfig.replace("60s", "90s").replace("enabled: true", "enabled: false")));
+        assertEquals(1, registrations.get());
+        assertEquals(20 * 1000, ttlCheck.getInterval());
+    }
+
+    @Test
+    public void describeTest() throws Exception {
+        assertEquals(((Collector.Describable) collector.getDelegate()).describe().size(), collector.describe().size());
+    }
+
+    @Test
+    public void invalidConfigTest() throws Exception {
+        final Collector first = collector.getDelegate();
+        assertFalse(reloader.apply("consul:\n  jitter: 5\n"));
+        assertFalse(reloader.apply("- no map"));
+        assertFalse(reloader.apply(CONFIG + "whitelistObjectNames:\n  - \"::invalid\"\n"));
+        assertSame(first, collector.getDelegate());
+        assertEquals(0, registrations.get());
+    }
+
+    @Test
+    public void watchFileTest() throws Exception {
+        final File configFile = File.createTempFile("jocose", ".yml");
+        try {
+            write(configFile, CONFIG);
+            final Thread watcher = reloader.watchFile(configFile);
+            final Collector first = collector.getDelegate();
+            write(configFile, CONFIG + "lowercaseOutputName: true\n");
+            for (int i = 0; i < 200 && collector.getDelegate() == first; i++) {
+                Thread.sleep(50);
+            }
+            assertNotSame(first, collector.getDelegate());
+            watcher.interrupt();
+        } finally {
+            configFile.delete();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
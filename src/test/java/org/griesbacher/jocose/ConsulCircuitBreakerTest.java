@@ -0,0 +1,91 @@
+package org.griesbacher.jocose;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConsulCircuitBreakerTest {
+    @Test
+    public void stateTest() throws Exception {
+        final ConsulCircuitBreaker breaker = new ConsulCircuitBreaker(2, 100, 100);
+        assertTrue(breaker.allowRequest());
+        breaker.failure();
+        assertEquals(ConsulCircuitBreaker.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.failure();
+        assertEquals(ConsulCircuitBreaker.OPEN, breaker.getState());
+
+        // the backoff is at most 100ms
+        Thread.sleep(150);
+        assertTrue("A single retry should be permitted", breaker.allowRequest());
+        assertEquals(ConsulCircuitBreaker.HALF_OPEN, breaker.getState());
+        assertFalse("Only a single retry should be permitted", breaker.allowRequest());
+        breaker.failure();
+        assertEquals(ConsulCircuitBreaker.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        breaker.success();
+        assertEquals(ConsulCircuitBreaker.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void backoffTest() throws Exception {
+        final ConsulCircuitBreaker breaker = new ConsulCircuitBreaker(1, 1000, 60000);
+        long max = 0;
+        long sum = 0;
+        for (int i = 0; i < 10000; i++) {
+            final long backoff = breaker.backoff(3);
+            assertTrue(backoff >= 0 && backoff < 8000);
+            max = Math.max(max, backoff);
+            sum += backoff;
+        }
+        // full jitter spreads the backoff uniformly over the whole range
+        assertTrue(max > 7500);
+        assertTrue(Math.abs(sum / 10000 - 4000) < 300);
+        for (int retry = 10; retry < 100; retry += 10) {
+            assertTrue(breaker.backoff(retry) < 60000);
+        }
+    }
+
+    @Test
+    public void consulTest() throws Exception {
+        final Consul consul = new Consul(
+                "123", "foo", new ArrayList<String>(),
+                "localhost", 123, "http://127.0.0.1:1",
+                new Config.Check()
+        );
+        for (int i = 0; i < ConsulCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertFalse(consul.isServiceRegistered());
+        }
+        final long start = System.nanoTime();
+        assertFalse(consul.registerService());
+        assertTrue("The open breaker should reject immediately", System.nanoTime() - start < 50 * 1000 * 1000);
+    }
+
+    @Test
+    public void runtimeExceptionTest() throws Exception {
+        // the port is out of range, the client fails with an IllegalArgumentException
+        final Consul consul = new Consul(
+                "123", "foo", new ArrayList<String>(),
+                "localhost", 123, "http://127.0.0.1:99999",
+                new Config.Check()
+        );
+        for (int i = 0; i < ConsulCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            try {
+                consul.registerService();
+                fail("The invalid port has to fail");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertFalse("The failures have to open the breaker", consul.registerService());
+    }
+}
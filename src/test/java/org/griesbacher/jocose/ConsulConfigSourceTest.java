@@ -0,0 +1,155 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ConsulConfigSourceTest {
+    private static final String CONFIG = "---\n" +
+            "consul:\n" +
+            "  enabled: false\n" +
+            "rules:\n" +
+            "  - pattern: \".*\"\n";
+    private static final Pattern INDEX = Pattern.compile("index=(\\d+)");
+    private final Object lock = new Object();
+    private HttpServer consulServer;
+    private String content = CONFIG;
+    private long index = 7;
+    private String token;
+
+    @Before
+    public void setUp() throws Exception {
+        JavaAgent.LOGGER.setUseParentHandlers(false);
+        consulServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        consulServer.createContext("/v1/kv/jocose/config", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final String query = exchange.getRequestURI().getQuery();
+                final Matcher matcher = INDEX.matcher(query);
+                final byte[] response;
+                final long currentIndex;
+                synchronized (lock) {
+                    token = exchange.getRequestHeaders().getFirst("X-Consul-Token");
+                    if (matcher.find() && Long.parseLong(matcher.group(1)) == index) {
+                        // block until the key changes, shortened for the test
+                        try {
+                            lock.wait(500);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    response = content.getBytes("UTF-8");
+                    currentIndex = index;
+                }
+                exchange.getResponseHeaders().add("X-Consul-Index", String.valueOf(currentIndex));
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        consulServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        consulServer.stop(0);
+    }
+
+    private String address() {
+        return "http://127.0.0.1:" + consulServer.getAddress().getPort();
+    }
+
+    private void change(String newContent) {
+        synchronized (lock) {
+            content = newContent;
+            index++;
+            lock.notifyAll();
+        }
+    }
+
+    @Test
+    public void readTest() throws Exception {
+        final ConsulConfigSource source = new ConsulConfigSource(address(), "/jocose/config", "secret");
+        assertEquals(CONFIG, source.read());
+        assertEquals("secret", token);
+        // nothing changed within the wait time
+        assertNull(source.await(1000));
+        change(CONFIG + "lowercaseOutputName: true\n");
+        assertEquals(CONFIG + "lowercaseOutputName: true\n", source.await(1000));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingKeyTest() throws Exception {
+        new ConsulConfigSource(address(), "jocose/other", null).read();
+    }
+
+    @Test
+    public void watchTest() throws Exception {
+        final ConsulConfigSource source = new ConsulConfigSource(address(), "jocose/config", null);
+        final String configString = source.read();
+        final ReloadableCollector collector = new ReloadableCollector(JavaAgent.createCollector(configString, 0));
+        final ConfigReloader reloader = new ConfigReloader(
+                collector, null, null, configString, ConfigHandler.parseConfig(new StringReader(configString))
+        );
+        final Collector first = collector.getDelegate();
+        final Thread watcher = source.watch(reloader, 1000, 100, 0);
+        change(CONFIG + "lowercaseOutputName: true\n");
+        for (int i = 0; i < 100 && collector.getDelegate() == first; i++) {
+            Thread.sleep(50);
+        }
+        assertNotSame(first, collector.getDelegate());
+        watcher.interrupt();
+    }
+
+    @Test
+    public void encodedKeyTest() throws Exception {
+        assertEquals("jocose/my%20config%3F/a%23b%25c", ConsulConfigSource.encode("jocose/my config?/a#b%c"));
+        final String[] rawPath = new String[1];
+        consulServer.createContext("/v1/kv/special/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                rawPath[0] = exchange.getRequestURI().getRawPath();
+                final byte[] response = CONFIG.getBytes("UTF-8");
+                exchange.getResponseHeaders().add("X-Consul-Index", "1");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        assertEquals(CONFIG, new ConsulConfigSource(address(), "special/my config?#%", null).read());
+        assertEquals("/v1/kv/special/my%20config%3F%23%25", rawPath[0]);
+    }
+
+    @Test
+    public void circuitBreakerTest() throws Exception {
+        final ConsulConfigSource source = new ConsulConfigSource("http://127.0.0.1:1", "jocose/config", null);
+        // reads and watches report to the same breaker
+        for (int i = 0; i < ConsulCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            try {
+                if (i % 2 == 0) {
+                    source.read();
+                } else {
+                    source.await(1000);
+                }
+                fail("Nothing listens on the port");
+            } catch (IOException e) {
+                assertFalse(e.getMessage().contains("circuit breaker"));
+            }
+        }
+        assertEquals(ConsulCircuitBreaker.OPEN, source.getBreaker().getState());
+    }
+}
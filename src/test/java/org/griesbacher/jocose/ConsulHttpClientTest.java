@@ -0,0 +1,109 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConsulHttpClientTest {
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private HttpServer httpServer;
+    private String address;
+
+    @Before
+    public void setUp() throws Exception {
+        start(0);
+    }
+
+    private void start(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        httpServer.createContext("/echo", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                final InputStream in = exchange.getRequestBody();
+                final StringBuilder body = new StringBuilder(exchange.getRequestMethod()).append(' ');
+                int c;
+                while ((c = in.read()) != -1) {
+                    body.append((char) c);
+                }
+                final byte[] response = body.toString().getBytes();
+                // zero means chunked encoding
+                final boolean chunked = exchange.getRequestURI().getQuery() != null;
+                exchange.sendResponseHeaders(200, chunked ? 0 : response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/slow", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        address = String.format("http://127.0.0.1:%d", httpServer.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void keepAliveTest() throws Exception {
+        final ConsulHttpClient client = new ConsulHttpClient(address);
+        assertEquals("PUT {}", client.request("PUT", "/echo", "{}").body);
+        assertEquals("GET ", client.request("GET", "/echo?chunked", null).body);
+        final ConsulHttpClient.Response response = client.request("GET", "/echo", null);
+        assertTrue(response.isSuccessful());
+        assertEquals("4", response.getHeader("content-length"));
+        assertEquals("All requests should use the same connection", 1, clientPorts.size());
+        client.close();
+    }
+
+    @Test
+    public void reconnectTest() throws Exception {
+        final ConsulHttpClient client = new ConsulHttpClient(address);
+        client.request("GET", "/echo", null);
+        // the kept connection gets closed by the restart
+        httpServer.stop(0);
+        start(httpServer.getAddress().getPort());
+        assertEquals("GET ", client.request("GET", "/echo", null).body);
+        assertEquals(2, clientPorts.size());
+        client.close();
+    }
+
+    @Test
+    public void deadlineTest() throws Exception {
+        final ConsulHttpClient client = new ConsulHttpClient(address);
+        final long start = System.currentTimeMillis();
+        try {
+            client.request("GET", "/slow", null, 500);
+            fail("The request should exceed its deadline");
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 1500);
+        }
+        // the connection is replaced after a timeout
+        assertEquals("GET ", client.request("GET", "/echo", null).body);
+        client.close();
+    }
+}
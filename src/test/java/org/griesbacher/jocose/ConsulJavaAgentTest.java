@@ -12,15 +12,66 @@ import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 public class ConsulJavaAgentTest {
+    private static final AtomicInteger passedChecks = new AtomicInteger();
+
     public static HttpServer MockConsulRegistration(final int port) throws IOException {
         final HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        // blocking queries must not block the other requests
+        httpServer.setExecutor(Executors.newCachedThreadPool());
         httpServer.start();
+        final AtomicReference<String> registeredID = new AtomicReference<String>();
+        httpServer.createContext("/v1/agent/service/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final String id = exchange.getRequestURI().getPath().substring("/v1/agent/service/".length());
+                final String query = exchange.getRequestURI().getQuery();
+                if (query != null && query.contains("hash=" + id)) {
+                    // block while the registration is unchanged, at most for two seconds
+                    final long end = System.currentTimeMillis() + 2000;
+                    while (id.equals(registeredID.get()) && System.currentTimeMillis() < end) {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                final byte[] response;
+                if (id.equals(registeredID.get())) {
+                    response = String.format("{\"ID\":\"%s\",\"Service\":\"foo\",\"Tags\":[],\"Port\":123}", id).getBytes();
+                    // the hash of the registration is simply its ID
+                    exchange.getResponseHeaders().add("X-Consul-ContentHash", id);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                } else {
+                    response = String.format("unknown service ID: %s", id).getBytes();
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, response.length);
+                }
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/v1/agent/check/pass/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final String checkID = exchange.getRequestURI().getPath().substring("/v1/agent/check/pass/".length());
+                final int status;
+                if (checkID.equals("service:" + registeredID.get())) {
+                    status = HttpURLConnection.HTTP_OK;
+                    passedChecks.incrementAndGet();
+                } else {
+                    status = HttpURLConnection.HTTP_NOT_FOUND;
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
         httpServer.createContext("/v1/agent/service/register", new HttpHandler() {
             public void handle(HttpExchange exchange) throws IOException {
                 final Gson g = new Gson();
@@ -28,11 +79,11 @@ public class ConsulJavaAgentTest {
                 assertNotNull(registeredConsulService);
                 assertTrue(registeredConsulService.ID != null && !"".equals(registeredConsulService.ID.trim()));
 
-                final byte[] response = new byte[]{};
-                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
-                exchange.getResponseBody().write(response);
-                exchange.close();
+                registeredID.set(registeredConsulService.ID);
 
+                // a registration replaces the contexts of the previous one
+                removeContext(httpServer, String.format("/v1/agent/service/deregister/%s", registeredConsulService.ID));
+                removeContext(httpServer, "/v1/agent/services");
                 httpServer.createContext(String.format("/v1/agent/service/deregister/%s", registeredConsulService.ID), new HttpHandler() {
                     public void handle(HttpExchange exchange) throws IOException {
                         final byte[] response = new byte[]{};
@@ -40,6 +91,7 @@ public class ConsulJavaAgentTest {
                         exchange.getResponseBody().write(response);
                         exchange.close();
                         registeredConsulService.ID = "---";
+                        registeredID.set(null);
                     }
                 });
 
@@ -55,11 +107,25 @@ public class ConsulJavaAgentTest {
                         exchange.close();
                     }
                 });
+
+                // the registration has to be visible before the client gets the answer
+                final byte[] response = new byte[]{};
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
             }
         });
         return httpServer;
     }
 
+    private static void removeContext(HttpServer httpServer, String path) {
+        try {
+            httpServer.removeContext(path);
+        } catch (IllegalArgumentException e) {
+            // not registered yet
+        }
+    }
+
 
     @Test
     public void consulRegistrationTest() throws Exception {
@@ -98,4 +164,47 @@ public class ConsulJavaAgentTest {
         assertTrue(consul.deregisterService());
         assertFalse(consul.isServiceRegistered());
     }
+
+    @Test
+    public void consulRegistrationWatchTest() throws Exception {
+        final int port = 8701;
+        MockConsulRegistration(port);
+        final Consul consul = new Consul(
+                "987-654-321", "foo", new ArrayList<String>(),
+                "localhost", 123, String.format("http://localhost:%d", port),
+                new Config.Check()
+        );
+
+        assertTrue(consul.registerService());
+        final ConsulRegistrationCheck check = new ConsulRegistrationCheck(consul, 1000, 0.2, 2000);
+        check.start();
+        Thread.sleep(200);
+        // the watch has to notice the lost registration before its blocking query ends
+        assertTrue(consul.deregisterService());
+        final long deadline = System.currentTimeMillis() + 1500;
+        while (!consul.isServiceRegistered() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(consul.isServiceRegistered());
+        check.stop();
+    }
+
+    @Test
+    public void consulTTLCheckTest() throws Exception {
+        final int port = 8702;
+        MockConsulRegistration(port);
+        final Consul consul = new Consul(
+                "111-222-333", "foo", new ArrayList<String>(),
+                "localhost", 123, String.format("http://localhost:%d", port),
+                new Config.Check(true, "1s", "1m")
+        );
+
+        assertFalse(consul.passCheck());
+        assertTrue(consul.registerService());
+        passedChecks.set(0);
+        final Scheduler.Task check = new ConsulTTLCheck(consul, 100, 0.2).start();
+        Thread.sleep(500);
+        check.cancel();
+        assertTrue(passedChecks.get() >= 2);
+    }
 }
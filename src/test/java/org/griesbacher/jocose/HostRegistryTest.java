@@ -0,0 +1,74 @@
+package org.griesbacher.jocose;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HostRegistryTest {
+    private File registryFile;
+
+    @Before
+    public void setUp() throws Exception {
+        registryFile = File.createTempFile("jocose-agents", ".registry");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registryFile.delete();
+    }
+
+    @Test
+    public void claimTest() throws Exception {
+        final HostRegistry first = new HostRegistry(registryFile.getPath());
+        final HostRegistry second = new HostRegistry(registryFile.getPath());
+        assertEquals(0, first.claim(9000, "first-id"));
+        // the slot of the first agent is locked
+        assertEquals(1, second.claim(9001, "second-id"));
+
+        final List<HostRegistry.Entry> entries = second.entries();
+        assertEquals(2, entries.size());
+        assertEquals(9000, entries.get(0).port);
+        assertEquals("first-id", entries.get(0).serviceID);
+        assertEquals(9001, entries.get(1).port);
+        assertEquals("second-id", entries.get(1).serviceID);
+        assertTrue(entries.get(0).pid > 0);
+
+        first.close();
+        assertEquals(1, second.entries().size());
+        second.close();
+    }
+
+    @Test
+    public void deadAgentTest() throws Exception {
+        final HostRegistry registry = new HostRegistry(registryFile.getPath());
+        // a slot which is marked as used, but not locked by a running process
+        final RandomAccessFile file = new RandomAccessFile(registryFile, "rw");
+        final int offset = 64 + 5 * HostRegistry.SLOT_SIZE;
+        file.seek(offset + 8);
+        file.writeLong(System.currentTimeMillis());
+        file.seek(offset);
+        file.writeInt(1);
+        file.close();
+
+        assertEquals(0, registry.entries().size());
+        assertEquals(0, registry.entries().size());
+        assertEquals(0, registry.claim(9000, ""));
+        assertEquals(1, registry.entries().size());
+        registry.close();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void foreignFileTest() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile(registryFile, "rw");
+        file.writeInt(42);
+        file.close();
+        new HostRegistry(registryFile.getPath());
+    }
+}
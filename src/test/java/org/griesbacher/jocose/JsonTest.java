@@ -0,0 +1,99 @@
+package org.griesbacher.jocose;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonTest {
+    @Test
+    public void writerTest() throws Exception {
+        final String json = new JsonWriter()
+                .beginObject()
+                .name("ID").value("a\"b\\c")
+                .name("Tags").beginArray().value("x\ny").value("\u0001").endArray()
+                .name("Empty").beginArray().endArray()
+                .name("Port").value(9000)
+                .name("Enabled").value(true)
+                .name("Missing").value((String) null)
+                .endObject()
+                .toString();
+        assertEquals("{\"ID\":\"a\\\"b\\\\c\",\"Tags\":[\"x\\ny\",\"\\u0001\"],\"Empty\":[],"
+                + "\"Port\":9000,\"Enabled\":true,\"Missing\":null}", json);
+    }
+
+    @Test
+    public void readerTest() throws Exception {
+        final JsonReader reader = new JsonReader(
+                " {\"ID\" : \"a\\\"b\\u00e4\", \"Tags\":[\"x\", \"y\"], \"Meta\":{\"k\":[1,{}]},"
+                        + " \"Port\":-9000, \"Enabled\":false, \"Missing\":null} "
+        );
+        reader.beginObject();
+        assertEquals("ID", reader.nextName());
+        assertEquals("a\"b\u00e4", reader.nextString());
+        assertTrue(reader.nextNameEquals("Tags"));
+        reader.beginArray();
+        assertTrue(reader.nextStringEquals("x"));
+        assertFalse(reader.nextStringEquals("yy"));
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertFalse(reader.nextNameEquals("Met"));
+        reader.skipValue();
+        assertEquals("Port", reader.nextName());
+        assertEquals(-9000, reader.nextLong());
+        assertEquals("Enabled", reader.nextName());
+        assertFalse(reader.nextBoolean());
+        assertEquals("Missing", reader.nextName());
+        assertEquals(JsonReader.Token.NULL, reader.peek());
+        reader.nextNull();
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        final String[] values = {"", "quote\"", "back\\slash", "tab\t", "\u2028", "\ud83d\ude00"};
+        final JsonWriter writer = new JsonWriter().beginArray();
+        for (String value : values) {
+            writer.value(value);
+        }
+        final JsonReader reader = new JsonReader(writer.endArray().toString());
+        reader.beginArray();
+        for (String value : values) {
+            assertEquals(value, reader.nextString());
+        }
+        reader.endArray();
+    }
+
+    @Test
+    public void malformedTest() throws Exception {
+        for (String json : Arrays.asList("{\"a\" 1}", "[1 2]", "{\"a\":\"b", "{} {}", "[tru]", "")) {
+            try {
+                final JsonReader reader = new JsonReader(json);
+                reader.skipValue();
+                reader.peek();
+                fail("Expected an error for: " + json);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void isOwnServiceTest() throws Exception {
+        final Consul consul = new Consul(
+                "123", "foo", new ArrayList<String>(Arrays.asList("a\"b", "c")),
+                "localhost", 123, "http://localhost:1", new Config.Check(true, "10s", "1m")
+        );
+        assertTrue(consul.isOwnService("{\"ID\":\"123\",\"Service\":\"foo\"}"));
+        assertTrue(consul.isOwnService("{\"Meta\":{\"ID\":\"456\"},\"ID\":\"123\"}"));
+        assertFalse(consul.isOwnService("{\"ID\":\"1234\"}"));
+        assertFalse(consul.isOwnService("{}"));
+    }
+}
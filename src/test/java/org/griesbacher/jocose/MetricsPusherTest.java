@@ -0,0 +1,165 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsPusherTest {
+    private final CopyOnWriteArrayList<String> pushes = new CopyOnWriteArrayList<String>();
+    private volatile int status = HttpURLConnection.HTTP_OK;
+    private HttpServer httpServer;
+    private String address;
+
+    @Before
+    public void setUp() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/metrics/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = read(exchange.getRequestBody());
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    body = read(new GZIPInputStream(new ByteArrayInputStream(body)));
+                }
+                pushes.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath() + "\n"
+                        + new String(body, "UTF-8"));
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        address = String.format("http://127.0.0.1:%d", httpServer.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpServer.stop(0);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void groupingPathTest() throws Exception {
+        final Map<String, String> labels = new LinkedHashMap<String, String>();
+        labels.put("instance", "host:42");
+        labels.put("path", "/a");
+        labels.put("empty", "");
+        assertEquals("/metrics/job/my%20job/instance/host%3A42/path@base64/L2E=/empty@base64/=",
+                MetricsPusher.groupingPath("my job", labels));
+        assertEquals("Zm9vYg==", MetricsPusher.base64("foob".getBytes("UTF-8")));
+        assertEquals("-_8=", MetricsPusher.base64(new byte[]{(byte) 0xfb, (byte) 0xff}));
+    }
+
+    @Test
+    public void pushTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final Gauge gauge = Gauge.build().name("pushed").help("Pushed.").register(registry);
+        gauge.set(1);
+        final MetricsPusher pusher = new MetricsPusher(
+                new ScrapeCache(registry, 0), new URL(address + "/metrics/job/test"), true,
+                MetricsPusher.DEFAULT_MAX_BYTES, 0
+        );
+        pusher.start(20, 0);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (pushes.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pushes.get(0).startsWith("PUT /metrics/job/test\n# HELP pushed Pushed.\n"));
+        assertTrue(pushes.get(0).contains("pushed 1.0\n"));
+
+        // the final push carries the last state
+        gauge.set(2);
+        pusher.stop();
+        final int count = pushes.size();
+        assertTrue(pushes.get(count - 1).contains("pushed 2.0\n"));
+        Thread.sleep(100);
+        assertEquals(count, pushes.size());
+    }
+
+    @Test
+    public void limitTest() throws Exception {
+        final String first = "# HELP a A.\n# TYPE a gauge\na 1.0\n";
+        final String second = "# HELP b B.\n# TYPE b gauge\nb 1.0\n";
+        final byte[] body = (first + second).getBytes("UTF-8");
+        assertEquals(body.length, MetricsPusher.limit(body, body.length));
+        assertEquals(first.length(), MetricsPusher.limit(body, body.length - 1));
+        assertEquals(0, MetricsPusher.limit(body, first.length() - 1));
+
+        final MetricsPusher pusher = new MetricsPusher(
+                new ScrapeCache(new CollectorRegistry(), 0), new URL(address + "/metrics/job/test"), false,
+                first.length() + 3, 0
+        );
+        pusher.push(body);
+        assertEquals("PUT /metrics/job/test\n" + first, pushes.get(0));
+
+        // not even the first family fits, an empty push would clear the group
+        final MetricsPusher tooSmall = new MetricsPusher(
+                new ScrapeCache(new CollectorRegistry(), 0), new URL(address + "/metrics/job/test"), false,
+                first.length() - 1, 0
+        );
+        try {
+            tooSmall.push(body);
+            fail("A push without any metric family has to fail");
+        } catch (IOException e) {
+            assertEquals(1, pushes.size());
+        }
+
+        status = HttpURLConnection.HTTP_BAD_REQUEST;
+        try {
+            pusher.push(body);
+            fail("A rejected push has to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("400"));
+        }
+    }
+
+    @Test
+    public void deleteAfterTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("pushed").help("Pushed.").register(registry).set(1);
+        final MetricsPusher pusher = new MetricsPusher(
+                new ScrapeCache(registry, 0), new URL(address + "/metrics/job/test"), false,
+                MetricsPusher.DEFAULT_MAX_BYTES, 50
+        );
+        pusher.stop();
+        assertEquals(2, pushes.size());
+        assertTrue(pushes.get(0).startsWith("PUT /metrics/job/test\n"));
+        assertEquals("DELETE /metrics/job/test\n", pushes.get(1));
+
+        // a group whose final push failed is kept
+        pushes.clear();
+        status = HttpURLConnection.HTTP_BAD_REQUEST;
+        new MetricsPusher(
+                new ScrapeCache(registry, 0), new URL(address + "/metrics/job/test"), false,
+                MetricsPusher.DEFAULT_MAX_BYTES, 50
+        ).stop();
+        assertEquals(1, pushes.size());
+    }
+}
@@ -0,0 +1,160 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioMetricsServerTest {
+    private NioMetricsServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("nio_test").help("Test").register(registry).set(42);
+        server = new NioMetricsServer(
+                new InetSocketAddress("127.0.0.1", 0), registry, new ScrapeCache(registry, 0), new Config.Exporter()
+        );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private static String readResponse(DataInputStream in) throws Exception {
+        final StringBuilder header = new StringBuilder();
+        int contentLength = 0;
+        String line;
+        while (!"".equals(line = readLine(in))) {
+            header.append(line).append('\n');
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        final byte[] body = new byte[contentLength];
+        in.readFully(body);
+        return header + "\n" + new String(body);
+    }
+
+    private static String readLine(DataInputStream in) throws Exception {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    @Test
+    public void keepAliveTest() throws Exception {
+        server.addUUIDContext("123-456");
+        final Socket socket = new Socket("127.0.0.1", server.getPort());
+        final OutputStream out = socket.getOutputStream();
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        out.write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+        final String metrics = readResponse(in);
+        assertTrue(metrics, metrics.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(metrics, metrics.contains("nio_test 42.0"));
+
+        out.write("GET /123-456 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+        final String uuid = readResponse(in);
+        assertTrue(uuid, uuid.endsWith("\n123-456"));
+        socket.close();
+    }
+
+    @Test
+    public void gzipTest() throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                String.format("http://127.0.0.1:%d/metrics", server.getPort())).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(connection.getInputStream())));
+        boolean found = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            found |= line.equals("nio_test 42.0");
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void slowCollectionTest() throws Exception {
+        slowCollection(new Config.Exporter(), 0);
+    }
+
+    @Test
+    public void slowFirstSnapshotTest() throws Exception {
+        // no background collection has finished yet
+        final Config.Exporter exporter = new Config.Exporter();
+        exporter.collectionInterval = 60000;
+        slowCollection(exporter, Long.MAX_VALUE);
+    }
+
+    private void slowCollection(Config.Exporter exporter, long ttl) throws Exception {
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CollectorRegistry registry = new CollectorRegistry();
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                collecting.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new ArrayList<MetricFamilySamples>();
+            }
+        }.register(registry);
+        final NioMetricsServer slowServer = new NioMetricsServer(
+                new InetSocketAddress("127.0.0.1", 0), registry, new ScrapeCache(registry, ttl), exporter
+        );
+        try {
+            slowServer.addUUIDContext("123-456");
+            final Socket scrape = new Socket("127.0.0.1", slowServer.getPort());
+            scrape.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            assertTrue(collecting.await(5, TimeUnit.SECONDS));
+
+            // the health check is answered while the collection is running
+            final Socket check = new Socket("127.0.0.1", slowServer.getPort());
+            check.setSoTimeout(5000);
+            check.getOutputStream().write("GET /123-456 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            assertTrue(readResponse(new DataInputStream(check.getInputStream())).endsWith("\n123-456"));
+            check.close();
+
+            release.countDown();
+            scrape.setSoTimeout(5000);
+            assertTrue(readResponse(new DataInputStream(scrape.getInputStream())).startsWith("HTTP/1.1 200 OK"));
+            scrape.close();
+        } finally {
+            release.countDown();
+            slowServer.stop();
+        }
+    }
+}
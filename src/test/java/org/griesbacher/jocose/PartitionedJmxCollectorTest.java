@@ -0,0 +1,54 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedJmxCollectorTest {
+    private static MetricFamilySamples family(String name, String label, double value) {
+        final List<MetricFamilySamples.Sample> samples = Collections.singletonList(
+                new MetricFamilySamples.Sample(name, Arrays.asList("label"), Arrays.asList(label), value)
+        );
+        return new MetricFamilySamples(name, Type.GAUGE, "help", samples);
+    }
+
+    @Test
+    public void mergeTest() throws Exception {
+        final List<List<MetricFamilySamples>> results = new ArrayList<List<MetricFamilySamples>>();
+        results.add(Arrays.asList(family("a", "1", 1), family("jmx_scrape_error", "", 0)));
+        results.add(Arrays.asList(family("a", "1", 2), family("a", "2", 3), family("jmx_scrape_error", "", 1)));
+
+        final List<MetricFamilySamples> merged = PartitionedJmxCollector.merge(results, 2000000000L);
+        assertEquals(3, merged.size());
+        assertEquals("a", merged.get(0).name);
+        assertEquals(2, merged.get(0).samples.size());
+        assertEquals(1, merged.get(0).samples.get(0).value, 0);
+        assertEquals(3, merged.get(0).samples.get(1).value, 0);
+        assertEquals("jmx_scrape_duration_seconds", merged.get(1).name);
+        assertEquals(2, merged.get(1).samples.get(0).value, 0);
+        assertEquals("jmx_scrape_error", merged.get(2).name);
+        assertEquals(1, merged.get(2).samples.get(0).value, 0);
+    }
+
+    @Test
+    public void collectByDomainTest() throws Exception {
+        final List<MetricFamilySamples> families = new PartitionedJmxCollector("---\n", 2).collect();
+        boolean javaLangFound = false;
+        for (MetricFamilySamples family : families) {
+            if (family.name.startsWith("java_lang_")) {
+                javaLangFound = true;
+            }
+        }
+        assertTrue("Expected java.lang MBeans to be collected", javaLangFound);
+        assertEquals("jmx_scrape_error", families.get(families.size() - 1).name);
+        assertEquals(0, families.get(families.size() - 1).samples.get(0).value, 0);
+    }
+}
@@ -0,0 +1,104 @@
+package org.griesbacher.jocose;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PortAllocatorTest {
+    private File leaseFile;
+
+    @Before
+    public void setUp() throws Exception {
+        leaseFile = File.createTempFile("jocose-ports", ".lease");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        leaseFile.delete();
+    }
+
+    /**
+     * RecordingBinder fails for the taken ports and remembers every attempt.
+     */
+    private static class RecordingBinder implements PortAllocator.Binder {
+        final Set<Integer> taken;
+        final List<Integer> attempts = new ArrayList<Integer>();
+
+        RecordingBinder(Set<Integer> taken) {
+            this.taken = taken;
+        }
+
+        public boolean bind(int port) {
+            attempts.add(port);
+            return taken.add(port);
+        }
+    }
+
+    @Test
+    public void leaseTest() throws Exception {
+        final Set<Integer> taken = new HashSet<Integer>();
+        // the leases of this JVM are held by their locks
+        final PortAllocator first = new PortAllocator(leaseFile.getPath(), 9000, 9010, "1");
+        final RecordingBinder firstBinder = new RecordingBinder(taken);
+        final int firstPort = first.allocate(firstBinder);
+        assertTrue(firstPort >= 9000 && firstPort < 9010);
+        assertEquals(1, firstBinder.attempts.size());
+
+        // the same offset, but the leased port is skipped without a bind attempt
+        final PortAllocator second = new PortAllocator(leaseFile.getPath(), 9000, 9010, "1");
+        final RecordingBinder secondBinder = new RecordingBinder(taken);
+        final int secondPort = second.allocate(secondBinder);
+        assertTrue(secondPort != firstPort);
+        assertEquals(1, secondBinder.attempts.size());
+
+        first.release(firstPort);
+        final RecordingBinder thirdBinder = new RecordingBinder(new HashSet<Integer>());
+        assertEquals(firstPort, new PortAllocator(leaseFile.getPath(), 9000, 9010, "1").allocate(thirdBinder));
+    }
+
+    @Test
+    public void staleLeaseTest() throws Exception {
+        final PortAllocator allocator = new PortAllocator(leaseFile.getPath(), 9000, 9001, "1");
+        final FileWriter writer = new FileWriter(leaseFile);
+        // a lease whose lock nobody holds, its agent does not exist anymore
+        writer.write("9000 8f67e672-1564-439e-9fd2-ecedd81c65ce\n");
+        writer.close();
+        final RecordingBinder binder = new RecordingBinder(new HashSet<Integer>());
+        assertEquals(9000, allocator.allocate(binder));
+        assertEquals(1, binder.attempts.size());
+    }
+
+    @Test
+    public void fullRangeTest() throws Exception {
+        final Set<Integer> taken = new HashSet<Integer>();
+        for (int port = 9000; port < 9005; port++) {
+            taken.add(port);
+        }
+        final RecordingBinder binder = new RecordingBinder(taken);
+        assertEquals(-1, new PortAllocator(leaseFile.getPath(), 9000, 9005, "1").allocate(binder));
+        assertEquals(5, binder.attempts.size());
+        assertEquals(0, leaseFile.length());
+    }
+
+    @Test
+    public void offsetTest() throws Exception {
+        final Set<Integer> offsets = new HashSet<Integer>();
+        for (int pid = 1000; pid < 1100; pid++) {
+            final int offset = new PortAllocator(leaseFile.getPath(), 9000, 9200, String.valueOf(pid)).offset(200);
+            assertTrue(offset >= 0 && offset < 200);
+            offsets.add(offset);
+        }
+        // consecutive pids should not start at neighbouring ports
+        assertTrue("offsets: " + offsets.size(), offsets.size() > 50);
+    }
+}
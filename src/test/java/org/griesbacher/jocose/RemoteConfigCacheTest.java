@@ -0,0 +1,139 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+public class RemoteConfigCacheTest {
+    private static final String ETAG = "\"v1\"";
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger revalidations = new AtomicInteger();
+    private final AtomicReference<String> content = new AtomicReference<String>("first");
+    private HttpServer httpServer;
+    private File directory;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("jocose-config", "");
+        directory.delete();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/config.yml", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    revalidations.incrementAndGet();
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                } else {
+                    downloads.incrementAndGet();
+                    final byte[] response = content.get().getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("ETag", ETAG);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                    exchange.getResponseBody().write(response);
+                }
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        url = String.format("http://127.0.0.1:%d/config.yml", httpServer.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpServer.stop(0);
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void maxAgeTest() throws Exception {
+        final RemoteConfigCache cache = new RemoteConfigCache(directory, 60 * 1000, 0);
+        assertEquals("first", cache.fetch(url));
+        assertEquals(RemoteConfigCache.DOWNLOADED, cache.getLastSource());
+        content.set("second");
+        // a second agent on the same host uses the copy of the first one
+        final RemoteConfigCache otherAgent = new RemoteConfigCache(directory, 60 * 1000, 0);
+        assertEquals("first", otherAgent.fetch(url));
+        assertEquals(RemoteConfigCache.CACHED, otherAgent.getLastSource());
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void revalidationTest() throws Exception {
+        final RemoteConfigCache cache = new RemoteConfigCache(directory, 0, 0);
+        assertEquals("first", cache.fetch(url));
+        assertEquals("first", cache.fetch(url));
+        assertEquals(RemoteConfigCache.REVALIDATED, cache.getLastSource());
+        assertEquals(1, downloads.get());
+        assertEquals(1, revalidations.get());
+    }
+
+    @Test
+    public void staleWhileRevalidateTest() throws Exception {
+        final RemoteConfigCache cache = new RemoteConfigCache(directory, 0, 60 * 1000);
+        assertEquals("first", cache.fetch(url));
+        assertEquals("first", cache.fetch(url));
+        assertEquals(RemoteConfigCache.STALE, cache.getLastSource());
+        for (int i = 0; i < 100 && revalidations.get() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, revalidations.get());
+    }
+
+    @Test
+    public void serverDownTest() throws Exception {
+        final RemoteConfigCache cache = new RemoteConfigCache(directory, 0, 0);
+        assertEquals("first", cache.fetch(url));
+        httpServer.stop(0);
+        assertEquals("first", cache.fetch(url));
+        assertEquals(RemoteConfigCache.STALE, cache.getLastSource());
+    }
+
+    @Test(expected = IOException.class)
+    public void noCacheTest() throws Exception {
+        httpServer.stop(0);
+        new RemoteConfigCache(directory, 0, 0).fetch(url);
+    }
+
+    @Test
+    public void privateDirectoryTest() throws Exception {
+        new RemoteConfigCache(directory, 60 * 1000, 0).fetch(url);
+        if (directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.toPath())));
+        }
+
+        // a symbolic link might lead into the directory of someone else
+        final File link = new File(directory.getPath() + "-link");
+        try {
+            Files.createSymbolicLink(link.toPath(), directory.toPath());
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        try {
+            final RemoteConfigCache cache = new RemoteConfigCache(link, 60 * 1000, 0);
+            assertEquals("first", cache.fetch(url));
+            assertEquals(RemoteConfigCache.DOWNLOADED, cache.getLastSource());
+            assertEquals(2, downloads.get());
+        } finally {
+            link.delete();
+        }
+    }
+}
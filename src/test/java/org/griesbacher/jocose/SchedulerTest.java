@@ -0,0 +1,77 @@
+package org.griesbacher.jocose;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerTest {
+    @Test
+    public void jitterTest() throws Exception {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 10000; i++) {
+            final long jittered = Scheduler.jitter(1000, 0.2);
+            min = Math.min(min, jittered);
+            max = Math.max(max, jittered);
+        }
+        assertTrue("min: " + min, min >= 800 && min < 850);
+        assertTrue("max: " + max, max <= 1200 && max > 1150);
+        assertEquals(1000, Scheduler.jitter(1000, 0));
+    }
+
+    @Test
+    public void scheduleTest() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final Scheduler.Task task = Scheduler.schedule(new Runnable() {
+            public void run() {
+                // failing runs must not end the schedule
+                if (runs.incrementAndGet() % 2 == 0) {
+                    throw new IllegalStateException("expected");
+                }
+            }
+        }, 0, 20, 0.5);
+        Thread.sleep(500);
+        task.cancel();
+        final int afterCancel = runs.get();
+        assertTrue("runs: " + afterCancel, afterCancel >= 5);
+        Thread.sleep(200);
+        assertTrue(runs.get() <= afterCancel + 1);
+    }
+
+    @Test
+    public void heartbeatTest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(2);
+        final Runnable blocking = new Runnable() {
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        // like two hanging collections or pushes
+        Scheduler.once(blocking, 0);
+        Scheduler.once(blocking, 0);
+        try {
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            final CountDownLatch beats = new CountDownLatch(3);
+            final Scheduler.Task heartbeat = Scheduler.heartbeat(new Runnable() {
+                public void run() {
+                    beats.countDown();
+                }
+            }, 0, 10, 0);
+            assertTrue(beats.await(5, TimeUnit.SECONDS));
+            heartbeat.cancel();
+        } finally {
+            release.countDown();
+        }
+    }
+}
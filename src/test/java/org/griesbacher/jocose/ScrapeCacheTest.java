@@ -0,0 +1,129 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapeCacheTest {
+    static class SlowCollector extends Collector {
+        final AtomicInteger collections = new AtomicInteger();
+        private final long delay;
+
+        SlowCollector(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            collections.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ignored) {
+            }
+            final List<MetricFamilySamples.Sample> samples = Collections.singletonList(
+                    new MetricFamilySamples.Sample("slow_metric", new ArrayList<String>(), new ArrayList<String>(), 1)
+            );
+            return Collections.singletonList(new MetricFamilySamples("slow_metric", Type.GAUGE, "help", samples));
+        }
+    }
+
+    @Test
+    public void concurrentScrapesShareOneCollectionTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final SlowCollector collector = new SlowCollector(300);
+        collector.register(registry);
+        final ScrapeCache cache = new ScrapeCache(registry, 0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        final List<Future<ScrapeResult>> results = new ArrayList<Future<ScrapeResult>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(new Callable<ScrapeResult>() {
+                public ScrapeResult call() throws Exception {
+                    return cache.get();
+                }
+            }));
+        }
+        final ScrapeResult first = results.get(0).get();
+        for (Future<ScrapeResult> result : results) {
+            assertSame(first, result.get());
+        }
+        executor.shutdown();
+
+        assertEquals(1, collector.collections.get());
+        assertTrue(new String(first.getBody()).contains("slow_metric 1.0"));
+    }
+
+    @Test
+    public void ttlTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final SlowCollector collector = new SlowCollector(0);
+        collector.register(registry);
+        final ScrapeCache cache = new ScrapeCache(registry, 200);
+
+        final ScrapeResult first = cache.get();
+        assertSame(first, cache.get());
+        assertEquals(1, collector.collections.get());
+
+        Thread.sleep(250);
+        assertNotSame(first, cache.get());
+        assertEquals(2, collector.collections.get());
+    }
+
+    @Test
+    public void refreshTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final SlowCollector collector = new SlowCollector(0);
+        collector.register(registry);
+        final ScrapeCache cache = new ScrapeCache(registry, Long.MAX_VALUE);
+        // peek never collects
+        assertNull(cache.peek());
+        assertEquals(0, collector.collections.get());
+
+        final ScrapeResult first = cache.get();
+        assertSame(first, cache.peek());
+        assertSame(first, cache.get());
+
+        final ScrapeResult refreshed = cache.refresh();
+        assertNotSame(first, refreshed);
+        assertSame(refreshed, cache.get());
+        assertEquals(2, collector.collections.get());
+    }
+
+    @Test
+    public void gzipBodyTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        new SlowCollector(0).register(registry);
+        final ScrapeResult result = new ScrapeCache(registry, 1000).get();
+
+        final byte[] gzipBody = result.getGzipBody();
+        assertSame(gzipBody, result.getGzipBody());
+
+        final GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(gzipBody));
+        final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = gzip.read(buffer)) != -1) {
+            plain.write(buffer, 0, read);
+        }
+        assertTrue(Arrays.equals(result.getBody(), plain.toByteArray()));
+    }
+}
@@ -0,0 +1,58 @@
+package org.griesbacher.jocose;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerExecutorsTest {
+    @Test
+    public void defaultThreadsTest() throws Exception {
+        final int threads = ServerExecutors.defaultThreads();
+        assertTrue(threads >= 1 && threads <= ServerExecutors.MAX_DEFAULT_THREADS);
+        assertTrue(ServerExecutors.cpuQuota() <= Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void boundedPoolTest() throws Exception {
+        final Config.Exporter exporter = new Config.Exporter();
+        exporter.threads = 2;
+        exporter.queueSize = 4;
+        final ExecutorService executor = ServerExecutors.create(exporter, true);
+        assertTrue(executor instanceof ServerExecutors.CountingExecutor);
+        assertEquals(2, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+
+        // blocked tasks fill the threads and the queue, the next request is overloaded but still queued
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 6; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertFalse(((ServerExecutors.CountingExecutor) executor).isOverloaded());
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(((ServerExecutors.CountingExecutor) executor).isOverloaded());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(((ServerExecutors.CountingExecutor) executor).isOverloaded());
+    }
+}
@@ -0,0 +1,206 @@
+package org.griesbacher.jocose;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SidecarTest {
+    private static final Pattern SET_SERVICE = Pattern.compile("\"Verb\":\"set\",\"Node\":\"test-node\",\"Service\":\\{\"ID\":\"([^\"]+)\"");
+    private static final Pattern DELETE_SERVICE = Pattern.compile("\"Verb\":\"delete\",\"Node\":\"test-node\",\"Service\":\\{\"ID\":\"([^\"]+)\"");
+    private static final Pattern OPERATION = Pattern.compile("\"Verb\":");
+    // the services of the node in the mocked catalog, null while the node does not exist
+    private final Set<String> catalog = Collections.synchronizedSet(new HashSet<String>());
+    private final List<Integer> transactions = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile boolean nodeExists;
+    // holds the transactions back while it is closed
+    private volatile CountDownLatch txnGate = new CountDownLatch(0);
+    private volatile CountDownLatch txnWaiting = new CountDownLatch(1);
+    private HttpServer consulServer;
+    private Sidecar sidecar;
+
+    @Before
+    public void setUp() throws Exception {
+        JavaAgent.LOGGER.setUseParentHandlers(false);
+        consulServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        consulServer.createContext("/v1/catalog/node/test-node", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final StringBuilder body = new StringBuilder();
+                if (!nodeExists) {
+                    body.append("null");
+                } else {
+                    body.append("{\"Node\":{\"Node\":\"test-node\"},\"Services\":{");
+                    synchronized (catalog) {
+                        boolean first = true;
+                        for (String id : catalog) {
+                            body.append(first ? "" : ",").append('"').append(id).append("\":{\"ID\":\"").append(id).append("\"}");
+                            first = false;
+                        }
+                    }
+                    body.append("}}");
+                }
+                respond(exchange, body.toString());
+            }
+        });
+        consulServer.createContext("/v1/txn", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                txnWaiting.countDown();
+                try {
+                    txnGate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final String body = read(exchange.getRequestBody());
+                int operations = 0;
+                final Matcher operation = OPERATION.matcher(body);
+                while (operation.find()) {
+                    operations++;
+                }
+                transactions.add(operations);
+                if (body.contains("\"Node\":{\"Verb\":\"set\"")) {
+                    nodeExists = true;
+                }
+                final Matcher set = SET_SERVICE.matcher(body);
+                while (set.find()) {
+                    catalog.add(set.group(1));
+                }
+                final Matcher delete = DELETE_SERVICE.matcher(body);
+                while (delete.find()) {
+                    catalog.remove(delete.group(1));
+                }
+                respond(exchange, "{\"Results\":[]}");
+            }
+        });
+        // the sidecar may request consul while a transaction is held back
+        consulServer.setExecutor(Executors.newCachedThreadPool());
+        consulServer.start();
+        final ConsulHttpClient client = new ConsulHttpClient("http://127.0.0.1:" + consulServer.getAddress().getPort());
+        sidecar = new Sidecar(new ConsulCatalog(client, "test-node", "127.0.0.1"), 60 * 1000);
+        sidecar.start(new InetSocketAddress("127.0.0.1", 0), true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sidecar.stop();
+        consulServer.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        final byte[] response = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private Consul agent(int i) {
+        return new Consul(
+                "agent-" + i, "service", Collections.singletonList("tag"), "localhost", 9000 + i,
+                "http://127.0.0.1:" + sidecar.getPort(), new Config.Check()
+        );
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        final List<Consul> agents = new ArrayList<Consul>();
+        for (int i = 0; i < 40; i++) {
+            final Consul agent = agent(i);
+            assertTrue(agent.registerService());
+            agents.add(agent);
+        }
+        assertTrue(agents.get(0).isServiceRegistered());
+        assertFalse(agent(99).isServiceRegistered());
+
+        transactions.clear();
+        sidecar.sync();
+        assertEquals(40, catalog.size());
+        // a service and a check per agent in transactions of at most 64 operations,
+        // the node might have been created by the first sync already
+        assertEquals(2, transactions.size());
+        assertEquals(Integer.valueOf(64), transactions.get(0));
+        assertTrue(transactions.get(1) == 16 || transactions.get(1) == 17);
+
+        // nothing changed, so nothing is written
+        transactions.clear();
+        sidecar.sync();
+        assertEquals(0, transactions.size());
+
+        assertTrue(agents.get(0).deregisterService());
+        sidecar.sync();
+        assertEquals(39, catalog.size());
+        assertFalse(catalog.contains("agent-0"));
+    }
+
+    @Test
+    public void recheckTest() throws Exception {
+        assertTrue(agent(1).registerService());
+        sidecar.sync();
+        assertTrue(catalog.contains("agent-1"));
+        // the service vanished from consul and an unknown one appeared
+        catalog.remove("agent-1");
+        catalog.add("stale");
+        sidecar.sync();
+        assertTrue(catalog.contains("agent-1"));
+        // the unknown service might belong to an agent which did not register at the restarted sidecar yet
+        assertTrue(catalog.contains("stale"));
+
+        // a sidecar which has not been started lately removes it
+        final ConsulHttpClient client = new ConsulHttpClient("http://127.0.0.1:" + consulServer.getAddress().getPort());
+        new Sidecar(new ConsulCatalog(client, "test-node", "127.0.0.1"), 60 * 1000).sync();
+        assertFalse(catalog.contains("stale"));
+    }
+
+    @Test
+    public void slowConsulTest() throws Exception {
+        assertTrue(agent(1).registerService());
+        txnWaiting = new CountDownLatch(1);
+        txnGate = new CountDownLatch(1);
+        final Thread sync = new Thread(new Runnable() {
+            public void run() {
+                sidecar.sync();
+            }
+        });
+        sync.start();
+        try {
+            assertTrue(txnWaiting.await(5, TimeUnit.SECONDS));
+            // the agents are answered while the sidecar waits for consul
+            final long start = System.nanoTime();
+            assertTrue(agent(2).registerService());
+            assertTrue(agent(1).isServiceRegistered());
+            assertTrue("The agents had to wait for consul", System.nanoTime() - start < 1000L * 1000 * 1000);
+        } finally {
+            txnGate.countDown();
+            sync.join();
+        }
+    }
+}
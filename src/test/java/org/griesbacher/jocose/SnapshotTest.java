@@ -0,0 +1,176 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotTest {
+    private static final String METRICS = "# HELP requests_total Requests.\n" +
+            "# TYPE requests_total counter\n" +
+            "requests_total{path=\"/\"} 3.0\n" +
+            "# HELP up Up.\n" +
+            "# TYPE up gauge\n" +
+            "up 1.0\n" +
+            "# HELP latency Latency.\n" +
+            "# TYPE latency summary\n" +
+            "latency_count 2.0\n" +
+            "latency_sum{} 0.5\n";
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("jocose-snapshots", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        final File path = new File(directory, "1" + SnapshotFile.SUFFIX);
+        final SnapshotFile file = new SnapshotFile(path);
+        file.write(42, "service", METRICS.getBytes("UTF-8"));
+
+        SnapshotFile.Snapshot snapshot = SnapshotFile.read(path);
+        assertEquals("1", snapshot.id);
+        assertEquals(42, snapshot.pid);
+        assertEquals("service", snapshot.service);
+        assertEquals(METRICS, new String(snapshot.body, "UTF-8"));
+        assertTrue(System.currentTimeMillis() - snapshot.written < 10000);
+
+        // the file grows for a larger snapshot
+        final byte[] large = new byte[200 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        file.write(42, "service", large);
+        snapshot = SnapshotFile.read(path);
+        assertArrayEquals(large, snapshot.body);
+
+        // a new writer continues the sequence
+        file.close();
+        final SnapshotFile next = new SnapshotFile(path);
+        next.write(43, "other", new byte[0]);
+        snapshot = SnapshotFile.read(path);
+        assertEquals(43, snapshot.pid);
+        assertEquals(0, snapshot.body.length);
+        next.close();
+    }
+
+    @Test
+    public void tornReadTest() throws Exception {
+        final File path = new File(directory, "1" + SnapshotFile.SUFFIX);
+        final SnapshotFile file = new SnapshotFile(path);
+        file.write(42, "service", METRICS.getBytes("UTF-8"));
+        file.close();
+
+        final RandomAccessFile raw = new RandomAccessFile(path, "rw");
+        // a writer which died while writing
+        raw.seek(4);
+        final int sequence = raw.readInt();
+        raw.seek(4);
+        raw.writeInt(sequence + 1);
+        assertNull(SnapshotFile.read(path));
+
+        // a body which does not match the checksum
+        raw.seek(4);
+        raw.writeInt(sequence + 2);
+        raw.seek(SnapshotFile.HEADER_SIZE);
+        raw.write('X');
+        assertNull(SnapshotFile.read(path));
+        raw.close();
+    }
+
+    @Test
+    public void mergeTest() throws Exception {
+        // agents in different pid namespaces may share a pid
+        final int pid = HostRegistry.pid();
+        new SnapshotFile(new File(directory, "a" + SnapshotFile.SUFFIX)).write(pid, "first", METRICS.getBytes("UTF-8"));
+        new SnapshotFile(new File(directory, "b" + SnapshotFile.SUFFIX)).write(pid, "se\"cond", METRICS.getBytes("UTF-8"));
+
+        final String merged = new String(new SnapshotAggregator(directory, 60000).merge(), "UTF-8");
+        final String first = "agent=\"a\",pid=\"" + pid + "\",service=\"first\"";
+        final String second = "agent=\"b\",pid=\"" + pid + "\",service=\"se\\\"cond\"";
+        assertEquals("# HELP requests_total Requests.\n" +
+                "# TYPE requests_total counter\n" +
+                "requests_total{" + first + ",path=\"/\"} 3.0\n" +
+                "requests_total{" + second + ",path=\"/\"} 3.0\n" +
+                "# HELP up Up.\n" +
+                "# TYPE up gauge\n" +
+                "up{" + first + "} 1.0\n" +
+                "up{" + second + "} 1.0\n" +
+                "# HELP latency Latency.\n" +
+                "# TYPE latency summary\n" +
+                "latency_count{" + first + "} 2.0\n" +
+                "latency_sum{" + first + "} 0.5\n" +
+                "latency_count{" + second + "} 2.0\n" +
+                "latency_sum{" + second + "} 0.5\n", merged);
+
+        // stale snapshots are ignored, their files are only removed long after
+        Thread.sleep(50);
+        assertEquals(0, new SnapshotAggregator(directory, 20).merge().length);
+        assertEquals(2, directory.listFiles().length);
+        assertEquals(0, new SnapshotAggregator(directory, 2).merge().length);
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void exportedLabelsTest() throws Exception {
+        final String metrics = "# HELP tasks Tasks.\n" +
+                "# TYPE tasks gauge\n" +
+                "tasks{service=\"hdfs\",name=\"pid=\\\",service=\",pid=\"7\",agent=\"x\",} 1.0\n";
+        final SnapshotFile.Snapshot snapshot = new SnapshotFile.Snapshot();
+        snapshot.id = "1";
+        snapshot.pid = 42;
+        snapshot.service = "agent";
+        snapshot.body = metrics.getBytes("UTF-8");
+        final Map<String, SnapshotAggregator.Family> families = new LinkedHashMap<String, SnapshotAggregator.Family>();
+        SnapshotAggregator.add(families, snapshot);
+        assertEquals(Collections.singletonList("tasks{agent=\"1\",pid=\"42\",service=\"agent\",exported_service=\"hdfs\","
+                        + "name=\"pid=\\\",service=\",exported_pid=\"7\",exported_agent=\"x\",} 1.0"),
+                families.get("tasks").samples);
+    }
+
+    @Test
+    public void writerTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("up").help("Up.").register(registry).set(1);
+        final SnapshotWriter first = new SnapshotWriter(new ScrapeCache(registry, 0), directory, 60000);
+        final SnapshotWriter second = new SnapshotWriter(new ScrapeCache(registry, 0), directory, 60000);
+        first.run();
+        second.run();
+        // every writer has its own file, even within one process
+        final File[] files = directory.listFiles();
+        assertEquals(2, files.length);
+
+        // a removed file is created again
+        files[0].delete();
+        files[1].delete();
+        first.run();
+        assertEquals(1, directory.listFiles().length);
+        assertTrue(new String(SnapshotFile.read(directory.listFiles()[0]).body, "UTF-8").contains("up 1.0"));
+
+        first.stop();
+        second.stop();
+        assertEquals(0, directory.listFiles().length);
+    }
+}
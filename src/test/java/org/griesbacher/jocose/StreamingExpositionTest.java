@@ -0,0 +1,35 @@
+package org.griesbacher.jocose;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+public class StreamingExpositionTest {
+    @Test
+    public void sameOutputAsTextFormatTest() throws Exception {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final Gauge gauge = Gauge.build().name("streaming_test").help("Test").labelNames("label").register(registry);
+        // more than one buffer, including characters outside of the BMP
+        for (int i = 0; i < 5000; i++) {
+            gauge.labels("value-\u00e4\ud83d\ude00-" + i).set(i);
+        }
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final OutputStreamWriter writer = new OutputStreamWriter(expected, "UTF-8");
+        TextFormat.write004(writer, registry.metricFamilySamples());
+        writer.close();
+
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            StreamingExposition.write(streamed, registry.metricFamilySamples());
+            assertTrue(Arrays.equals(expected.toByteArray(), streamed.toByteArray()));
+        }
+    }
+}